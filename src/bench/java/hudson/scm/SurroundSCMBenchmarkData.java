@@ -0,0 +1,166 @@
+package hudson.scm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Synthetic <tt>sscm cc</tt> output for the benchmarks. Everything is drawn
+ * from a fixed seed, so the same number of lines always gives the same
+ * bytes. Lines come in changesets of one to eight files by the same user
+ * with the same comment, and paths, names, comments and users are drawn
+ * from pools sized like those of a large product repository.
+ */
+final class SurroundSCMBenchmarkData {
+
+  static final String REPOSITORY = "Mainline/product";
+  static final long SEED = 20110401L;
+  // seconds between changesets
+  static final int CHANGESET_SPACING = 37;
+
+  private static final String[] TOP = { "src", "test", "docs", "build", "tools", "web" };
+  private static final String[] WORDS = {
+    "fix", "defect", "crash", "when", "the", "parser", "reads", "an", "empty", "branch", "update", "build",
+    "script", "for", "release", "merge", "changes", "from", "maintenance", "remove", "unused", "imports",
+    "handle", "timeout", "in", "server", "connection", "refactor", "report", "layout", "add", "test", "case"
+  };
+  private static final String[] ACTIONS = {
+    "Check in", "Check in", "Check in", "Check in", "Check in", "Check in", "Add", "Delete", "Rename", "Merge"
+  };
+
+  private final String[] directories;
+  private final String[] names;
+  private final String[] users;
+
+  SurroundSCMBenchmarkData() {
+    Random random = new Random(SEED);
+    directories = new String[2000];
+    for (int i = 0; i < directories.length; i++) {
+      StringBuilder sb = new StringBuilder(REPOSITORY).append('/').append(TOP[random.nextInt(TOP.length)]);
+      int depth = 2 + random.nextInt(5);
+      for (int d = 0; d < depth; d++)
+        sb.append('/').append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(20));
+      directories[i] = sb.toString();
+    }
+    names = new String[5000];
+    for (int i = 0; i < names.length; i++) {
+      String word = WORDS[random.nextInt(WORDS.length)];
+      names[i] = Character.toUpperCase(word.charAt(0)) + word.substring(1) + WORDS[random.nextInt(WORDS.length)] + i
+                 + (random.nextInt(10) == 0 ? ".xml" : ".java");
+    }
+    users = new String[40];
+    for (int i = 0; i < users.length; i++)
+      users[i] = "developer" + i;
+  }
+
+  /**
+   * A directory of the pool, for lookups of paths the changes touch.
+   */
+  String getDirectory(int i) {
+    return directories[i % directories.length];
+  }
+
+  /**
+   * When the first change of {@link #write} happened.
+   */
+  static Date getStart() {
+    return start().getTime();
+  }
+
+  /**
+   * When the last change of {@link #write} for the given number of lines
+   * happened, at the latest.
+   */
+  static Date getEnd(int lines) {
+    Calendar c = start();
+    c.add(Calendar.SECOND, lines * CHANGESET_SPACING);
+    return c.getTime();
+  }
+
+  private static Calendar start() {
+    Calendar c = Calendar.getInstance(TimeZone.getDefault());
+    c.clear();
+    c.set(2026, Calendar.JANUARY, 5, 9, 0, 0);
+    return c;
+  }
+
+  /**
+   * Writes the <tt>total-N</tt> header and the given number of change lines.
+   */
+  void write(int lines, OutputStream out) throws IOException {
+    Random random = new Random(SEED + lines);
+    Calendar date = start();
+    out.write(("total-" + lines + "\n").getBytes("UTF-8"));
+    int written = 0;
+    while (written < lines) {
+      String user = users[random.nextInt(users.length)];
+      String comment = comment(random);
+      String stamp = format(date);
+      int files = Math.min(lines - written, 1 + random.nextInt(8));
+      String dir = directories[random.nextInt(directories.length)];
+      for (int f = 0; f < files; f++, written++) {
+        // files of a changeset are mostly in the same directory
+        String path = random.nextInt(4) == 0 ? directories[random.nextInt(directories.length)] : dir;
+        String line = '<' + path + "><" + names[random.nextInt(names.length)] + "><" + (1 + random.nextInt(400))
+                      + "><" + ACTIONS[random.nextInt(ACTIONS.length)] + "><" + stamp + "><" + comment + "><" + user
+                      + ">\n";
+        out.write(line.getBytes("UTF-8"));
+      }
+      date.add(Calendar.SECOND, CHANGESET_SPACING);
+    }
+  }
+
+  byte[] changes(int lines) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    write(lines, out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes the changes to a new temporary file, optionally converted to the
+   * compact format.
+   */
+  File changelog(int lines, boolean compact) throws IOException {
+    File file = File.createTempFile("sscm-bench", ".xml");
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+    try {
+      write(lines, out);
+    } finally {
+      out.close();
+    }
+    if (compact)
+      SurroundSCMCompactChangeLog.convert(file);
+    return file;
+  }
+
+  static void delete(File changelog) {
+    if (changelog == null)
+      return;
+    SurroundSCMChangeLogIndex.indexFileFor(changelog).delete();
+    changelog.delete();
+  }
+
+  private static String comment(Random random) {
+    // realistic comments are a few words up to a short paragraph
+    int words = 3 + random.nextInt(random.nextInt(4) == 0 ? 40 : 10);
+    StringBuilder sb = new StringBuilder("Defect ").append(1000 + random.nextInt(9000)).append(':');
+    for (int i = 0; i < words; i++)
+      sb.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+    if (random.nextInt(20) == 0)
+      sb.append(" (a > b)"); // sscm does not escape '>' in comments
+    return sb.toString();
+  }
+
+  private static String format(Calendar c) {
+    return String.format("%04d%02d%02d%02d%02d%02d", c.get(Calendar.YEAR), c.get(Calendar.MONTH) + 1,
+                         c.get(Calendar.DAY_OF_MONTH), c.get(Calendar.HOUR_OF_DAY), c.get(Calendar.MINUTE),
+                         c.get(Calendar.SECOND));
+  }
+}
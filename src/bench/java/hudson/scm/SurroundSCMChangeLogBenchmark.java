@@ -0,0 +1,100 @@
+package hudson.scm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading and parsing changelogs of 10 to 1M lines, in the text format sscm
+ * writes and in the compact format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SurroundSCMChangeLogBenchmark {
+
+  static final long WINDOW_MILLIS = 60 * 1000L;
+
+  @Param({ "10", "1000", "100000", "1000000" })
+  public int lines;
+
+  @Param({ "text", "compact" })
+  public String format;
+
+  private File changelog;
+  private final SurroundSCMChangeLogParser parser = new SurroundSCMChangeLogParser(WINDOW_MILLIS);
+
+  @Setup(Level.Trial)
+  public void writeChangeLog() throws IOException {
+    changelog = new SurroundSCMBenchmarkData().changelog(lines, format.equals("compact"));
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteChangeLog() {
+    SurroundSCMBenchmarkData.delete(changelog);
+  }
+
+  /**
+   * Every field of every line, as the index builder and the file history
+   * read them.
+   */
+  @Benchmark
+  public int read(Blackhole bh) throws IOException {
+    SurroundSCMChangeLogReader reader = SurroundSCMChangeLogParser.openReader(changelog, true);
+    int n = 0;
+    try {
+      while (reader.next()) {
+        for (int field = SurroundSCMChangeLogParser.PATH; field <= SurroundSCMChangeLogParser.USER; field++)
+          bh.consume(reader.get(field));
+        n++;
+      }
+    } finally {
+      reader.close();
+    }
+    return n;
+  }
+
+  @State(Scope.Thread)
+  public static class NoIndex {
+    // the first parse of a changelog builds its index
+    @Setup(Level.Invocation)
+    public void deleteIndex(SurroundSCMChangeLogBenchmark benchmark) {
+      SurroundSCMChangeLogIndex.indexFileFor(benchmark.changelog).delete();
+    }
+  }
+
+  /**
+   * The first parse of a changelog, which scans it and writes its index.
+   */
+  @Benchmark
+  public int parse(NoIndex noIndex) throws Exception {
+    return ((SurroundSCMChangeLogSet) parser.parse(null, changelog)).size();
+  }
+
+  /**
+   * Any later parse, e.g. when the build is loaded after a restart, which
+   * only reads the index.
+   */
+  @Benchmark
+  public int parseIndexed() throws Exception {
+    return ((SurroundSCMChangeLogSet) parser.parse(null, changelog)).size();
+  }
+}
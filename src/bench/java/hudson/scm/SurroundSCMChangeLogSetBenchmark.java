@@ -0,0 +1,85 @@
+package hudson.scm;
+
+import hudson.scm.SurroundSCMChangeLogSet.SurroundSCMChangeLogSetEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * What Hudson does with a parsed change set: iterate it to list the
+ * changes, ask the entries for their affected paths, and show one page of
+ * the changes view. Each run starts from a freshly parsed set with an
+ * existing index, like a build loaded from disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SurroundSCMChangeLogSetBenchmark {
+
+  @Param({ "10", "1000", "100000", "1000000" })
+  public int lines;
+
+  @Param({ "text", "compact" })
+  public String format;
+
+  private File changelog;
+  private final SurroundSCMChangeLogParser parser = new SurroundSCMChangeLogParser(SurroundSCMChangeLogBenchmark.WINDOW_MILLIS);
+
+  @Setup(Level.Trial)
+  public void writeChangeLog() throws Exception {
+    changelog = new SurroundSCMBenchmarkData().changelog(lines, format.equals("compact"));
+    parser.parse(null, changelog);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteChangeLog() {
+    SurroundSCMBenchmarkData.delete(changelog);
+  }
+
+  private SurroundSCMChangeLogSet load() throws Exception {
+    return (SurroundSCMChangeLogSet) parser.parse(null, changelog);
+  }
+
+  @Benchmark
+  public void iterate(Blackhole bh) throws Exception {
+    for (SurroundSCMChangeLogSetEntry entry : load()) {
+      bh.consume(entry.getMsg());
+      bh.consume(entry.getDate());
+    }
+  }
+
+  @Benchmark
+  public void affectedPaths(Blackhole bh) throws Exception {
+    for (SurroundSCMChangeLogSetEntry entry : load())
+      bh.consume(entry.getAffectedPaths());
+  }
+
+  /**
+   * The page of the changes view in the middle of the set.
+   */
+  @Benchmark
+  public void page(Blackhole bh) throws Exception {
+    SurroundSCMChangeLogSet set = load();
+    for (SurroundSCMChangeLogSetEntry entry : set.getEntries(set.size() / 2, SurroundSCMChangeLogSet.VIEW_PAGE_SIZE))
+      bh.consume(entry.getDirectories());
+  }
+}
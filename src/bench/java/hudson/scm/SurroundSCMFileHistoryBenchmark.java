@@ -0,0 +1,91 @@
+package hudson.scm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading a job's file history and answering the queries of its page, for a
+ * history holding two builds of the given changelog size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SurroundSCMFileHistoryBenchmark {
+
+  @Param({ "1000", "100000", "1000000" })
+  public int lines;
+
+  private File jobDir;
+  private File changelog;
+  private SurroundSCMBenchmarkData data;
+  private SurroundSCMFileHistory history;
+  private String[] paths;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void record() throws IOException {
+    data = new SurroundSCMBenchmarkData();
+    changelog = data.changelog(lines, false);
+    jobDir = File.createTempFile("sscm-bench", "-job");
+    jobDir.delete();
+    jobDir.mkdirs();
+    history = SurroundSCMFileHistory.load(jobDir);
+    history.add(1, changelog);
+    history.add(2, changelog);
+
+    // look up paths that are in the history
+    SurroundSCMChangeLogReader reader = SurroundSCMChangeLogParser.openReader(changelog, true);
+    paths = new String[Math.min(lines, 1024)];
+    try {
+      for (int i = 0; i < paths.length && reader.next(); i++)
+        paths[i] = reader.get(SurroundSCMChangeLogParser.PATH) + '/' + reader.get(SurroundSCMChangeLogParser.NAME);
+    } finally {
+      reader.close();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void delete() {
+    SurroundSCMBenchmarkData.delete(changelog);
+    new File(jobDir, SurroundSCMFileHistory.FILE_NAME).delete();
+    jobDir.delete();
+  }
+
+  /**
+   * Reading the history file, as on the first query after a restart.
+   */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public SurroundSCMFileHistory load() throws IOException {
+    return SurroundSCMFileHistory.load(jobDir);
+  }
+
+  @Benchmark
+  public List<SurroundSCMFileHistory.Revision> fileHistory() {
+    return history.getHistory(paths[next++ % paths.length]);
+  }
+
+  @Benchmark
+  public List<SurroundSCMFileHistory.Revision> directoryHistory() {
+    return history.getHistoryBelow(data.getDirectory(next++), 50);
+  }
+}
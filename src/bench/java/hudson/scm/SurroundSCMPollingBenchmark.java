@@ -0,0 +1,101 @@
+package hudson.scm;
+
+import hudson.scm.PollingResult;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The polling decision of {@link SurroundSCM#compareRemoteRevisionWith} once
+ * the changes are listed, fed canned <tt>sscm cc</tt> output: the output is
+ * turned into a snapshot, the changes since the build are counted through
+ * the job's path filter and the count becomes a {@link PollingResult}. The
+ * output sizes stay below what the polling service keeps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SurroundSCMPollingBenchmark {
+
+  static final long MARGIN_MILLIS = 60 * 1000L;
+
+  @Param({ "10", "1000", "20000" })
+  public int lines;
+
+  // included paths of the job, empty for none
+  @Param({ "", "src/**" })
+  public String includes;
+
+  private byte[] output;
+  private Date to;
+  private SurroundSCM scm;
+  private SurroundSCMPathFilter filter;
+  private SurroundSCMRevisionState built;
+  private SurroundSCMRevisionState polled;
+  private SurroundSCMPollingService.Snapshot snapshot;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    output = new SurroundSCMBenchmarkData().changes(lines);
+    if (output.length > SurroundSCMChangeCache.MAX_OUTPUT_BYTES)
+      throw new IllegalStateException(lines + " lines are more than the polling service keeps");
+    to = SurroundSCMBenchmarkData.getEnd(lines);
+    scm = new SurroundSCM();
+    filter = new SurroundSCMPathFilter(SurroundSCMBenchmarkData.REPOSITORY, includes, null);
+    built = new SurroundSCMRevisionState(SurroundSCMBenchmarkData.getStart(), 1);
+    snapshot = new SurroundSCMPollingService.Snapshot(built.getDate(), to, lines, output);
+    // a job that already polled the first half of the changes
+    Date half = new Date((built.getDate().getTime() + to.getTime()) / 2);
+    polled = built.advance(new SurroundSCMPollingService.Snapshot(built.getDate(), half, lines, output), built.getDate(),
+                           filter, MARGIN_MILLIS);
+  }
+
+  /**
+   * A poll that ran the query itself.
+   */
+  @Benchmark
+  public PollingResult poll() throws IOException {
+    Date from = built.getQueryStart(MARGIN_MILLIS);
+    SurroundSCMPollingService.Snapshot changes = new SurroundSCMPollingService.Snapshot(from, to, lines, output);
+    return decide(built, changes, from);
+  }
+
+  /**
+   * A poll answered from the snapshot another job's query left behind.
+   */
+  @Benchmark
+  public PollingResult sharedSnapshot() {
+    return decide(built, snapshot, built.getQueryStart(MARGIN_MILLIS));
+  }
+
+  /**
+   * A poll continuing from the cursor of an earlier poll, which only counts
+   * the changes it has not seen.
+   */
+  @Benchmark
+  public PollingResult nextPoll() {
+    return decide(polled, snapshot, polled.getQueryStart(MARGIN_MILLIS));
+  }
+
+  private PollingResult decide(SurroundSCMRevisionState state, SurroundSCMPollingService.Snapshot changes, Date from) {
+    SurroundSCMRevisionState remote = state.advance(changes, from, filter, MARGIN_MILLIS);
+    return scm.toPollingResult(state, remote, remote.getChangeCount());
+  }
+}
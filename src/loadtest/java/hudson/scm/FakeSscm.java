@@ -0,0 +1,373 @@
+package hudson.scm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * A stand-in for the sscm command line client that serves <tt>get</tt> and
+ * <tt>cc</tt> the way the plugin calls them from a synthetic repository on
+ * disk, so the plugin can be load tested without a Surround server. Set a
+ * job's sscm executable, or the global default one, to the script
+ * {@link #install} writes.
+ * <p>
+ * The model directory holds the files of the repository under
+ * <tt>files/</tt> and its history, one <tt>sscm cc</tt> line per change in
+ * date order, in <tt>history.txt</tt>. The history runs from before to
+ * after the time it was generated, so polls keep finding new changes. Every
+ * branch serves the same files. The properties file named by the
+ * <tt>fake.sscm.config</tt> system property configures it:
+ * <dl>
+ * <dt><tt>model</tt></dt><dd>the model directory</dd>
+ * <dt><tt>latency.ms</tt>, <tt>latency.jitter.ms</tt></dt>
+ * <dd>how long every call takes at least, and up to how much longer at
+ * random; <tt>cc.latency.ms</tt> and <tt>get.latency.ms</tt> override the
+ * former for one command</dd>
+ * <dt><tt>cc.repeat</tt></dt><dd>how often every change is listed, to
+ * inflate the output of <tt>cc</tt></dd>
+ * <dt><tt>failure.rate</tt>, <tt>failure.message</tt></dt><dd>the share of
+ * calls that fail, and what they print; by default a connection error</dd>
+ * <dt><tt>hang.rate</tt>, <tt>hang.ms</tt></dt><dd>the share of calls that
+ * stall, and for how long</dd>
+ * <dt><tt>branches</tt></dt><dd>if set, the only branches that exist</dd>
+ * <dt><tt>reject.users</tt></dt><dd>users whose login fails</dd>
+ * </dl>
+ * {@link #generate} takes the size of the model from the same properties:
+ * <tt>repository</tt>, <tt>files</tt>, <tt>file.size</tt>,
+ * <tt>history.interval.seconds</tt>, <tt>history.hours.before</tt> and
+ * <tt>history.hours.after</tt>.
+ */
+public final class FakeSscm {
+
+  static final String CONFIG_PROPERTY = "fake.sscm.config";
+  static final String DEFAULT_FAILURE = "Unable to connect to the Surround SCM server (simulated network failure).";
+
+  private static final String CC_DATE_FORMAT = "yyyyMMddHHmmss";
+  private static final String[] WORDS = {
+    "fix", "defect", "crash", "parser", "empty", "branch", "update", "build", "script", "release", "merge",
+    "changes", "maintenance", "remove", "unused", "imports", "handle", "timeout", "server", "refactor", "report"
+  };
+
+  private final Properties config;
+  private final Random random = new Random();
+
+  FakeSscm(Properties config) {
+    this.config = config;
+  }
+
+  public static void main(String[] args) {
+    int exit;
+    try {
+      exit = new FakeSscm(load(new File(System.getProperty(CONFIG_PROPERTY)))).run(args, System.out);
+    } catch (Exception e) {
+      System.out.println("sscm: " + e.getMessage());
+      exit = 1;
+    }
+    System.out.flush();
+    System.exit(exit);
+  }
+
+  static Properties load(File configFile) throws IOException {
+    Properties config = new Properties();
+    InputStream in = new FileInputStream(configFile);
+    try {
+      config.load(in);
+    } finally {
+      in.close();
+    }
+    return config;
+  }
+
+  /**
+   * Runs one command.
+   *
+   * @return the exit code.
+   */
+  int run(String[] args, PrintStream out) throws IOException, InterruptedException {
+    if (args.length < 2) {
+      out.println("usage: sscm get|cc item [options]");
+      return 1;
+    }
+    Map<Character, String> options = new HashMap<Character, String>();
+    boolean recursive = false;
+    for (String arg : Arrays.asList(args).subList(2, args.length)) {
+      if (arg.equals("-r"))
+        recursive = true;
+      else if (arg.startsWith("-") && arg.length() > 1)
+        options.put(arg.charAt(1), arg.substring(2));
+    }
+    String command = args[0];
+
+    Thread.sleep(getLong(command + ".latency.ms", getLong("latency.ms", 0))
+                 + (long) (random.nextDouble() * getLong("latency.jitter.ms", 0)));
+    if (random.nextDouble() < getDouble("hang.rate"))
+      Thread.sleep(getLong("hang.ms", 60000));
+    if (random.nextDouble() < getDouble("failure.rate")) {
+      out.println(config.getProperty("failure.message", DEFAULT_FAILURE));
+      return 1;
+    }
+
+    String login = options.get('y');
+    String user = login == null ? "" : login.substring(0, Math.max(0, login.indexOf(':')));
+    if (listed("reject.users", user)) {
+      out.println("Invalid username or password for " + user + ".");
+      return 1;
+    }
+    String branch = options.get('b');
+    if (branch == null || (config.getProperty("branches") != null && !listed("branches", branch))) {
+      out.println("Branch '" + branch + "' does not exist.");
+      return 1;
+    }
+    String repository = options.get('p');
+    File model = new File(config.getProperty("model"));
+    if (repository == null || !new File(new File(model, "files"), repository).exists()) {
+      out.println("Repository '" + repository + "' does not exist.");
+      return 1;
+    }
+
+    if (command.equals("cc"))
+      return changes(model, repository, options.get('d'), recursive, out);
+    if (command.equals("get"))
+      return get(model, repository, args[1], options.get('d'), recursive, out);
+    out.println("Unknown command " + command + ".");
+    return 1;
+  }
+
+  private int changes(File model, String repository, String range, boolean recursive, PrintStream out)
+        throws IOException {
+    String from = "00000000000000";
+    String to = "99999999999999";
+    if (range != null && range.indexOf(':') > 0) {
+      from = range.substring(0, range.indexOf(':'));
+      to = range.substring(range.indexOf(':') + 1);
+    }
+    int repeat = (int) getLong("cc.repeat", 1);
+
+    // the count comes first, so find the changes before printing them
+    List<String> matching = new ArrayList<String>();
+    BufferedReader history = new BufferedReader(new FileReader(new File(model, "history.txt")));
+    try {
+      String line;
+      while ((line = history.readLine()) != null) {
+        String[] fields = line.substring(1, line.length() - 1).split("><", -1);
+        String path = fields[0];
+        String date = fields[4];
+        if (date.compareTo(from) < 0 || date.compareTo(to) > 0)
+          continue;
+        if (path.equals(repository) || (recursive && path.startsWith(repository + "/")))
+          matching.add(line);
+      }
+    } finally {
+      history.close();
+    }
+
+    out.println("total-" + matching.size() * repeat);
+    for (String line : matching) {
+      for (int i = 0; i < repeat; i++)
+        out.println(line);
+    }
+    return 0;
+  }
+
+  private int get(File model, String repository, String item, String destination, boolean recursive, PrintStream out)
+        throws IOException {
+    if (destination == null) {
+      out.println("No destination given.");
+      return 1;
+    }
+    File source = new File(new File(model, "files"), repository);
+    File target = new File(destination);
+    if (!item.equals("/")) {
+      File file = new File(source, item);
+      if (!file.isFile()) {
+        out.println("File '" + item + "' does not exist in " + repository + ".");
+        return 1;
+      }
+      copy(file, new File(target, item), out);
+      return 0;
+    }
+    if (!source.isDirectory()) {
+      out.println("'" + repository + "' is not a repository.");
+      return 1;
+    }
+    copyTree(source, target, recursive, out);
+    return 0;
+  }
+
+  private static void copyTree(File source, File target, boolean recursive, PrintStream out) throws IOException {
+    File[] children = source.listFiles();
+    if (children == null)
+      return;
+    Arrays.sort(children);
+    for (File child : children) {
+      if (child.isDirectory()) {
+        if (recursive)
+          copyTree(child, new File(target, child.getName()), true, out);
+      } else {
+        copy(child, new File(target, child.getName()), out);
+      }
+    }
+  }
+
+  private static void copy(File from, File to, PrintStream out) throws IOException {
+    to.getParentFile().mkdirs();
+    InputStream in = new FileInputStream(from);
+    try {
+      OutputStream os = new FileOutputStream(to);
+      try {
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0)
+          os.write(buf, 0, n);
+      } finally {
+        os.close();
+      }
+    } finally {
+      in.close();
+    }
+    out.println(to.getPath() + " has been retrieved.");
+  }
+
+  private boolean listed(String key, String value) {
+    String list = config.getProperty(key);
+    if (list == null)
+      return false;
+    for (String s : list.split(",")) {
+      if (s.trim().equals(value))
+        return true;
+    }
+    return false;
+  }
+
+  private long getLong(String key, long defaultValue) {
+    String value = config.getProperty(key);
+    return value == null ? defaultValue : Long.parseLong(value.trim());
+  }
+
+  private double getDouble(String key) {
+    String value = config.getProperty(key);
+    return value == null ? 0 : Double.parseDouble(value.trim());
+  }
+
+  /**
+   * Creates the model directory named in the configuration unless it
+   * already exists.
+   */
+  static void generate(Properties config) throws IOException {
+    File model = new File(config.getProperty("model"));
+    if (new File(model, "history.txt").exists())
+      return;
+    String repository = config.getProperty("repository", "Mainline/product");
+    int files = Integer.parseInt(config.getProperty("files", "2000"));
+    int fileSize = Integer.parseInt(config.getProperty("file.size", "2048"));
+    int interval = Integer.parseInt(config.getProperty("history.interval.seconds", "30"));
+    int before = Integer.parseInt(config.getProperty("history.hours.before", "24"));
+    int after = Integer.parseInt(config.getProperty("history.hours.after", "24"));
+    Random random = new Random(4711);
+
+    String[] dirs = new String[Math.max(1, files / 20)];
+    for (int i = 0; i < dirs.length; i++)
+      dirs[i] = repository + "/src/module" + i % 10 + "/" + WORDS[i % WORDS.length] + i;
+    String[] paths = new String[files];
+    String[] names = new String[files];
+    byte[] content = new byte[fileSize];
+    for (int i = 0; i < files; i++) {
+      paths[i] = dirs[random.nextInt(dirs.length)];
+      names[i] = "File" + i + ".java";
+      for (int b = 0; b < content.length; b++)
+        content[b] = (byte) (b % 64 == 63 ? '\n' : 'a' + random.nextInt(26));
+      File file = new File(new File(new File(model, "files"), paths[i]), names[i]);
+      file.getParentFile().mkdirs();
+      OutputStream os = new FileOutputStream(file);
+      try {
+        os.write(content);
+      } finally {
+        os.close();
+      }
+    }
+
+    int[] versions = new int[files];
+    Arrays.fill(versions, 1);
+    SimpleDateFormat format = new SimpleDateFormat(CC_DATE_FORMAT);
+    long now = System.currentTimeMillis();
+    File tmp = new File(model, "history.txt.tmp");
+    Writer history = new BufferedWriter(new FileWriter(tmp));
+    try {
+      for (long t = now - before * 3600000L; t <= now + after * 3600000L; t += interval * 1000L) {
+        String date = format.format(new Date(t));
+        String user = "developer" + random.nextInt(20);
+        String comment = "Defect " + (1000 + random.nextInt(9000)) + ": " + WORDS[random.nextInt(WORDS.length)] + ' '
+                         + WORDS[random.nextInt(WORDS.length)];
+        int changed = 1 + random.nextInt(4);
+        for (int c = 0; c < changed; c++) {
+          int f = random.nextInt(files);
+          history.write('<' + paths[f] + "><" + names[f] + "><" + ++versions[f] + "><Check in><" + date + "><"
+                        + comment + "><" + user + ">\n");
+        }
+      }
+    } finally {
+      history.close();
+    }
+    if (!tmp.renameTo(new File(model, "history.txt")))
+      throw new IOException("Failed to rename " + tmp);
+  }
+
+  /**
+   * Writes the configuration and a script that runs this class with it, for
+   * jobs to use as their sscm executable.
+   *
+   * @return the script.
+   */
+  static File install(File dir, Properties config) throws IOException {
+    dir.mkdirs();
+    File configFile = new File(dir, "fake-sscm.properties");
+    OutputStream os = new FileOutputStream(configFile);
+    try {
+      config.store(os, "fake sscm");
+    } finally {
+      os.close();
+    }
+
+    String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+    StringBuilder classpath = new StringBuilder();
+    for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+      if (classpath.length() > 0)
+        classpath.append(File.pathSeparatorChar);
+      classpath.append(new File(entry).getAbsolutePath());
+    }
+    boolean windows = File.pathSeparatorChar == ';';
+    File script = new File(dir, windows ? "sscm.cmd" : "sscm");
+    Writer w = new FileWriter(script);
+    try {
+      if (windows) {
+        w.write("@\"" + java + "\" -cp \"" + classpath + "\" -D" + CONFIG_PROPERTY + "=\"" + configFile.getAbsolutePath()
+                + "\" " + FakeSscm.class.getName() + " %*\r\n");
+      } else {
+        w.write("#!/bin/sh\nexec '" + java + "' -cp '" + classpath + "' -D"
+                + CONFIG_PROPERTY + "='" + configFile.getAbsolutePath() + "' " + FakeSscm.class.getName() + " \"$@\"\n");
+      }
+    } finally {
+      w.close();
+    }
+    script.setExecutable(true);
+    return script;
+  }
+}
@@ -0,0 +1,230 @@
+package hudson.scm;
+
+import com.gargoylesoftware.htmlunit.html.HtmlCheckBoxInput;
+import com.gargoylesoftware.htmlunit.html.HtmlForm;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.util.StreamTaskListener;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs concurrent checkouts and polls of many jobs against {@link FakeSscm}
+ * and reports their latency percentiles and the server queue statistics.
+ * Run it with the <tt>loadtest</tt> profile:
+ * <pre>
+ *   mvn -Ploadtest test -Dloadtest.jobs=200 -Dfake.sscm.latency.ms=50
+ * </pre>
+ * The <tt>loadtest.*</tt> system properties size the run, see the fields
+ * below; <tt>fake.sscm.*</tt> ones are passed to the fake sscm, e.g.
+ * <tt>-Dfake.sscm.failure.rate=0.05</tt>. The report is printed and written
+ * to <tt>target/loadtest/report.txt</tt>.
+ */
+public class SurroundSCMLoadTest extends HudsonTestCase {
+
+  private static final int JOBS = Integer.getInteger("loadtest.jobs", 50);
+  private static final int BRANCHES = Integer.getInteger("loadtest.branches", 5);
+  private static final int EXECUTORS = Integer.getInteger("loadtest.executors", 10);
+  private static final int THREADS = Integer.getInteger("loadtest.threads", 20);
+  private static final int POLL_ROUNDS = Integer.getInteger("loadtest.pollRounds", 5);
+  private static final int MIXED_OPERATIONS = Integer.getInteger("loadtest.mixedOperations", 200);
+  private static final String MAX_CONCURRENT_CALLS = System.getProperty("loadtest.maxConcurrentCalls", "8");
+  private static final String FAKE_PREFIX = "fake.sscm.";
+
+  private final StringBuilder report = new StringBuilder();
+
+  public void testConcurrentPollsAndCheckouts() throws Exception {
+    File dir = new File(System.getProperty("basedir", "."), "target/loadtest");
+    Properties config = new Properties();
+    config.setProperty("model", new File(dir, "model").getAbsolutePath());
+    for (Map.Entry<Object, Object> e : System.getProperties().entrySet()) {
+      String key = e.getKey().toString();
+      if (key.startsWith(FAKE_PREFIX) && !key.equals(FakeSscm.CONFIG_PROPERTY))
+        config.setProperty(key.substring(FAKE_PREFIX.length()), e.getValue().toString());
+    }
+    FakeSscm.generate(config);
+    File sscm = FakeSscm.install(new File(dir, "bin"), config);
+    boolean faultless = config.getProperty("failure.rate") == null && config.getProperty("hang.rate") == null;
+
+    configure(sscm);
+    hudson.setNumExecutors(EXECUTORS);
+    hudson.setNodes(hudson.getNodes());
+
+    List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+    for (int i = 0; i < JOBS; i++) {
+      FreeStyleProject p = createFreeStyleProject("job" + i);
+      p.setScm(new SurroundSCM("", "localhost", "4900", "builder", "secret", "branch" + i % BRANCHES,
+                               config.getProperty("repository", "Mainline/product"), null, true, true, null, false,
+                               null, 0, false, null, null, null, null));
+      projects.add(p);
+    }
+    report.append(String.format("%d jobs on %d branches, %d executors, %d threads, maxConcurrentCalls %s%n", JOBS,
+                                BRANCHES, EXECUTORS, THREADS, MAX_CONCURRENT_CALLS));
+    report.append("fake sscm: ").append(config).append(String.format("%n%n"));
+
+    int failedCheckouts = checkouts("first checkouts", projects);
+    int failedPolls = 0;
+    for (int round = 1; round <= POLL_ROUNDS; round++)
+      failedPolls += polls("poll round " + round, projects);
+    int failedMixed = mixed(projects);
+
+    report.append(String.format("%n%-8s %8s %8s %8s %8s %8s %8s %8s %8s%n", "server", "calls", "avg wait", "max wait",
+                                "rejected", "skipped", "failures", "timeouts", "backoff"));
+    for (SurroundSCMScheduler.ServerQueue queue : SurroundSCM.DESCRIPTOR.getScheduler().getQueues()) {
+      report.append(String.format("%-8s %8d %8d %8d %8d %8d %8d %8d %8d%n", queue.getServer(), queue.getCalls(),
+                                  queue.getAverageWaitMillis(), queue.getMaxWaitMillis(), queue.getRejected(),
+                                  queue.getSkipped(), queue.getFailures(), queue.getTimeouts(),
+                                  queue.getBackoffSeconds()));
+    }
+
+    System.out.println(report);
+    FileWriter w = new FileWriter(new File(dir, "report.txt"));
+    try {
+      w.write(report.toString());
+    } finally {
+      w.close();
+    }
+
+    if (faultless) {
+      assertEquals("failed checkouts", 0, failedCheckouts);
+      assertEquals("failed polls", 0, failedPolls);
+      assertEquals("failed mixed operations", 0, failedMixed);
+    }
+  }
+
+  /**
+   * Sets the global options through the configuration page, so they are
+   * bound the way a user would set them.
+   */
+  private void configure(File sscm) throws Exception {
+    HtmlForm form = createWebClient().goTo("configure").getFormByName("config");
+    form.getInputByName("defaultExecutable").setValueAttribute(sscm.getAbsolutePath());
+    form.getInputByName("maxConcurrentCalls").setValueAttribute(MAX_CONCURRENT_CALLS);
+    form.getInputByName("pollJitter").setValueAttribute("0");
+    ((HtmlCheckBoxInput) form.getInputByName("disableServerProbe")).setChecked(true);
+    submit(form);
+  }
+
+  private int checkouts(String phase, List<FreeStyleProject> projects) throws Exception {
+    List<Future<FreeStyleBuild>> builds = new ArrayList<Future<FreeStyleBuild>>();
+    for (FreeStyleProject p : projects)
+      builds.add(p.scheduleBuild2(0));
+    List<Long> durations = new ArrayList<Long>();
+    int failed = 0;
+    long start = System.currentTimeMillis();
+    for (Future<FreeStyleBuild> f : builds) {
+      FreeStyleBuild build = f.get();
+      durations.add(build.getDuration());
+      if (build.getResult() != Result.SUCCESS) {
+        failed++;
+        if (failed == 1)
+          report.append(build.getLog(50)).append(String.format("%n"));
+      }
+    }
+    record(phase, durations, failed, System.currentTimeMillis() - start);
+    return failed;
+  }
+
+  private int polls(String phase, List<FreeStyleProject> projects) throws Exception {
+    List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+    for (FreeStyleProject p : projects)
+      tasks.add(poll(p));
+    return run(phase, tasks);
+  }
+
+  /**
+   * Polls and builds at random at the same time, as a busy master does.
+   */
+  private int mixed(final List<FreeStyleProject> projects) throws Exception {
+    Random random = new Random(42);
+    List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+    for (int i = 0; i < MIXED_OPERATIONS; i++) {
+      final FreeStyleProject p = projects.get(random.nextInt(projects.size()));
+      if (random.nextInt(10) > 0) {
+        tasks.add(poll(p));
+      } else {
+        tasks.add(new Callable<Long>() {
+          public Long call() throws Exception {
+            long start = System.currentTimeMillis();
+            FreeStyleBuild build = p.scheduleBuild2(0).get();
+            if (build.getResult() != Result.SUCCESS)
+              throw new IOException(p.getName() + " failed: " + build.getLog(20));
+            return System.currentTimeMillis() - start;
+          }
+        });
+      }
+    }
+    return run("mixed polls and builds", tasks);
+  }
+
+  private static Callable<Long> poll(final FreeStyleProject p) {
+    return new Callable<Long>() {
+      public Long call() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        long start = System.currentTimeMillis();
+        p.poll(new StreamTaskListener(log));
+        long took = System.currentTimeMillis() - start;
+        String output = log.toString();
+        if (output.contains("FATAL") || output.contains("ERROR"))
+          throw new IOException(p.getName() + " failed to poll: " + output);
+        return took;
+      }
+    };
+  }
+
+  private int run(String phase, List<Callable<Long>> tasks) throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    List<Long> latencies = new ArrayList<Long>();
+    int failed = 0;
+    long start = System.currentTimeMillis();
+    try {
+      for (Future<Long> f : pool.invokeAll(tasks)) {
+        try {
+          latencies.add(f.get());
+        } catch (Exception e) {
+          failed++;
+          if (failed == 1) {
+            StringWriter trace = new StringWriter();
+            e.printStackTrace(new PrintWriter(trace));
+            report.append(trace);
+          }
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+    record(phase, latencies, failed, System.currentTimeMillis() - start);
+    return failed;
+  }
+
+  private void record(String phase, List<Long> latencies, int failed, long elapsed) {
+    Collections.sort(latencies);
+    report.append(String.format("%-24s %5d ok %4d failed in %6d ms   p50 %6d  p90 %6d  p99 %6d  max %6d ms%n", phase,
+                                latencies.size(), failed, elapsed, percentile(latencies, 50),
+                                percentile(latencies, 90), percentile(latencies, 99), percentile(latencies, 100)));
+  }
+
+  private static long percentile(List<Long> sorted, int p) {
+    if (sorted.isEmpty())
+      return 0;
+    int rank = (int) Math.ceil(p / 100.0 * sorted.size());
+    return sorted.get(Math.max(0, rank - 1));
+  }
+}
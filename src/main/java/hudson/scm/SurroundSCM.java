@@ -3,6 +3,14 @@ package hudson.scm;
 import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import net.sf.json.JSONObject;
 
@@ -12,8 +20,14 @@ import org.kohsuke.stapler.StaplerRequest;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Proc;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Job;
+import hudson.model.Node;
 import hudson.model.Run;
 import hudson.model.BuildListener;
 import hudson.model.TaskListener;
@@ -32,13 +46,74 @@ public final class SurroundSCM extends SCM {
   public static class SurroundSCMDescriptor extends
         SCMDescriptor<SurroundSCM> {
 
+    private transient final SurroundSCMChangeCache changeCache = new SurroundSCMChangeCache();
+    private transient final SurroundSCMPollingService pollingService = new SurroundSCMPollingService();
+    private transient final SurroundSCMScheduler scheduler = new SurroundSCMScheduler();
+    private transient final SurroundSCMMetrics metrics = new SurroundSCMMetrics();
+    private transient final SurroundSCMMirrors mirrors = new SurroundSCMMirrors();
+    private transient final SurroundSCMServerHealth serverHealth = new SurroundSCMServerHealth();
+    // file histories of the jobs used most recently, by job directory;
+    // guarded by itself, not the descriptor
+    private transient final Map<String, SurroundSCMFileHistory> fileHistories = new LinkedHashMap<String, SurroundSCMFileHistory>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, SurroundSCMFileHistory> eldest) {
+        return size() > MAX_FILE_HISTORIES;
+      }
+    };
+    // held while a job's file history is read, by job directory
+    private transient final Map<String, Object> fileHistoryLoads = new HashMap<String, Object>();
+
+    // file revisions by the same user with the same comment this many seconds
+    // apart are shown as one changeset
+    private int changeSetWindow = DEFAULT_CHANGESET_WINDOW;
+
+    // how long the changes found by one poll answer the polls of other jobs
+    // watching the same source
+    private int pollingCacheTtl = DEFAULT_POLLING_CACHE_TTL;
+
+    // sscm calls allowed to run against one server at the same time, how
+    // long a call waits for its turn, and how far polls are spread out
+    private int maxConcurrentCalls = DEFAULT_MAX_CONCURRENT_CALLS;
+    private int maxQueueWait = DEFAULT_MAX_QUEUE_WAIT;
+    private int pollJitter = DEFAULT_POLL_JITTER;
+
+    // store changelogs in the compact binary format instead of sscm output
+    private boolean compactChangeLog;
+
+    // sscm run by jobs that do not name their own
+    private String defaultExecutable;
+
+    // how far before the newest change seen polls query again, to allow for
+    // clock differences and changes committed with an earlier timestamp
+    private int clockSkewMargin = DEFAULT_CLOCK_SKEW_MARGIN;
+
+    // mirrors kept per node before the least recently used are deleted
+    private int maxMirrors = DEFAULT_MAX_MIRRORS;
+
+    // seconds sscm may run before it is killed, for fetching the workspace and
+    // for listing changes; 0 for no limit
+    private int checkoutTimeout = DEFAULT_CHECKOUT_TIMEOUT;
+    private int changesTimeout = DEFAULT_CHANGES_TIMEOUT;
+
+    // how often a get that failed in a way that looks transient is tried
+    // again, and the delay before the first retry, doubled for each further one
+    private int checkoutRetries = DEFAULT_CHECKOUT_RETRIES;
+    private int retryDelay = DEFAULT_RETRY_DELAY;
+
+    // servers jobs can refer to by name instead of repeating the settings
+    private List<SurroundSCMServerProfile> profiles = new ArrayList<SurroundSCMServerProfile>();
+
+    // for masters that cannot reach servers the nodes can
+    private boolean disableServerProbe;
 
     /**
      * Constructs a new SurroundSCMDescriptor.
      */
     protected SurroundSCMDescriptor() {
       super(SurroundSCM.class, null);
-      load();
+      // outside of Hudson, e.g. in the benchmarks, there is no configuration to load
+      if (Hudson.getInstance() != null)
+        load();
     }
 
     /**
@@ -56,8 +131,212 @@ public final class SurroundSCM extends SCM {
       return scm;
     }
 
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
+      changeSetWindow = formData.optInt("changeSetWindow", DEFAULT_CHANGESET_WINDOW);
+      pollingCacheTtl = formData.optInt("pollingCacheTtl", DEFAULT_POLLING_CACHE_TTL);
+      maxConcurrentCalls = formData.optInt("maxConcurrentCalls", DEFAULT_MAX_CONCURRENT_CALLS);
+      maxQueueWait = formData.optInt("maxQueueWait", DEFAULT_MAX_QUEUE_WAIT);
+      pollJitter = formData.optInt("pollJitter", DEFAULT_POLL_JITTER);
+      compactChangeLog = formData.optBoolean("compactChangeLog");
+      defaultExecutable = Util.fixEmptyAndTrim(formData.optString("defaultExecutable"));
+      maxMirrors = formData.optInt("maxMirrors", DEFAULT_MAX_MIRRORS);
+      clockSkewMargin = formData.optInt("clockSkewMargin", DEFAULT_CLOCK_SKEW_MARGIN);
+      checkoutTimeout = formData.optInt("checkoutTimeout", DEFAULT_CHECKOUT_TIMEOUT);
+      changesTimeout = formData.optInt("changesTimeout", DEFAULT_CHANGES_TIMEOUT);
+      checkoutRetries = formData.optInt("checkoutRetries", DEFAULT_CHECKOUT_RETRIES);
+      retryDelay = formData.optInt("retryDelay", DEFAULT_RETRY_DELAY);
+      disableServerProbe = formData.optBoolean("disableServerProbe");
+      profiles = new ArrayList<SurroundSCMServerProfile>();
+      for (SurroundSCMServerProfile profile : req.bindJSONToList(SurroundSCMServerProfile.class, formData.opt("profiles"))) {
+        if (profile.getName() != null && profile.getName().length() > 0)
+          profiles.add(profile);
+      }
+      save();
+      return true;
+    }
+
+    public int getChangeSetWindow() {
+      return changeSetWindow;
+    }
+
+    public int getPollingCacheTtl() {
+      return pollingCacheTtl;
+    }
+
+    public int getMaxConcurrentCalls() {
+      return maxConcurrentCalls;
+    }
+
+    public int getMaxQueueWait() {
+      return maxQueueWait;
+    }
+
+    public int getPollJitter() {
+      return pollJitter;
+    }
+
+    public boolean isCompactChangeLog() {
+      return compactChangeLog;
+    }
+
+    public String getDefaultExecutable() {
+      return defaultExecutable == null ? DEFAULT_EXECUTABLE : defaultExecutable;
+    }
+
+    public int getMaxMirrors() {
+      return maxMirrors;
+    }
+
+    public int getClockSkewMargin() {
+      return clockSkewMargin;
+    }
+
+    public int getCheckoutTimeout() {
+      return checkoutTimeout;
+    }
+
+    public int getChangesTimeout() {
+      return changesTimeout;
+    }
+
+    public int getCheckoutRetries() {
+      return checkoutRetries;
+    }
+
+    public int getRetryDelay() {
+      return retryDelay;
+    }
+
+    public synchronized List<SurroundSCMServerProfile> getProfiles() {
+      // null when read from a configuration saved before profiles existed
+      return profiles == null ? new ArrayList<SurroundSCMServerProfile>() : new ArrayList<SurroundSCMServerProfile>(profiles);
+    }
+
+    /**
+     * The profile with the given name.
+     *
+     * @return null if there is none.
+     */
+    public SurroundSCMServerProfile getProfile(String name) {
+      for (SurroundSCMServerProfile profile : getProfiles()) {
+        if (profile.getName().equals(name))
+          return profile;
+      }
+      return null;
+    }
+
+    public boolean isDisableServerProbe() {
+      return disableServerProbe;
+    }
+
+    /**
+     * Reachability of the servers in use, refreshed in the background.
+     */
+    public SurroundSCMServerHealth getServerHealth() {
+      return serverHealth;
+    }
+
+    /**
+     * Seconds the given sscm sub command may run, 0 for no limit.
+     */
+    int getTimeout(String command) {
+      return "cc".equals(command) ? changesTimeout : checkoutTimeout;
+    }
+
+    /**
+     * Limits the concurrent sscm calls per server.
+     */
+    public SurroundSCMScheduler getScheduler() {
+      return scheduler;
+    }
+
+    /**
+     * Timings of the recent sscm calls per server.
+     */
+    public SurroundSCMMetrics getMetrics() {
+      return metrics;
+    }
+
+    /**
+     * Locks and eviction of the node-local mirrors.
+     */
+    public SurroundSCMMirrors getMirrors() {
+      return mirrors;
+    }
+
+    /**
+     * The file history of a job, read from its directory the first time it
+     * is needed. The file is read outside the descriptor's and the cache's
+     * locks, so a large history only holds up callers for the same job.
+     */
+    public SurroundSCMFileHistory getFileHistory(Job<?, ?> job) throws IOException {
+      String key = job.getRootDir().getPath();
+      Object load;
+      synchronized (fileHistories) {
+        SurroundSCMFileHistory history = fileHistories.get(key);
+        if (history != null)
+          return history;
+        load = fileHistoryLoads.get(key);
+        if (load == null) {
+          load = new Object();
+          fileHistoryLoads.put(key, load);
+        }
+      }
+
+      synchronized (load) {
+        synchronized (fileHistories) {
+          SurroundSCMFileHistory history = fileHistories.get(key);
+          if (history != null)
+            return history;
+        }
+        SurroundSCMFileHistory history = null;
+        try {
+          history = SurroundSCMFileHistory.load(job.getRootDir());
+          return history;
+        } finally {
+          synchronized (fileHistories) {
+            if (history != null)
+              fileHistories.put(key, history);
+            fileHistoryLoads.remove(key);
+          }
+        }
+      }
+    }
+
+    /**
+     * Shares change queries between the jobs that watch the same source.
+     */
+    public SurroundSCMPollingService getPollingService() {
+      return pollingService;
+    }
+
+    /**
+     * Changes seen by the last poll of each job, reused by the checkout that
+     * follows it.
+     */
+    public SurroundSCMChangeCache getChangeCache() {
+      return changeCache;
+    }
+
   }
 
+  static final String DEFAULT_EXECUTABLE = "sscm";
+  static final int DEFAULT_CHANGESET_WINDOW = 60;
+  static final int DEFAULT_POLLING_CACHE_TTL = 60;
+  static final int DEFAULT_MAX_CONCURRENT_CALLS = 4;
+  static final int DEFAULT_MAX_QUEUE_WAIT = 300;
+  static final int DEFAULT_POLL_JITTER = 5;
+  static final int DEFAULT_MAX_MIRRORS = 8;
+  static final int DEFAULT_CLOCK_SKEW_MARGIN = 300;
+  static final int MAX_FILE_HISTORIES = 50;
+  static final int DEFAULT_CHECKOUT_TIMEOUT = 2 * 60 * 60;
+  static final int DEFAULT_CHANGES_TIMEOUT = 10 * 60;
+  static final int DEFAULT_CHECKOUT_RETRIES = 3;
+  static final int DEFAULT_RETRY_DELAY = 30;
+
+  private static final Random RANDOM = new Random();
+
   // if there are > changesThreshold changes, that it's build now -
   // incomparable
   // if there are < changesThreshold changes, but > 0 changes, then it's
@@ -74,6 +353,17 @@ public final class SurroundSCM extends SCM {
   private String branch ;
   private String repository;
   private String surroundSCMExecutable;
+  private boolean incrementalUpdate;
+  private boolean pollWithoutWorkspace;
+  private String pollingNode;
+  private boolean useMirror;
+  private String partitions;
+  private int parallelGets;
+  private boolean retryFailedPartitions;
+  private String includedPaths;
+  private String excludedPaths;
+  private String serverProfile;
+  private String watchedSources;
 
 
   //getters and setters
@@ -140,10 +430,171 @@ public final class SurroundSCM extends SCM {
       return surroundSCMExecutable;
   }
 
+  /**
+   * The sscm to run: the job's own executable if it names one, otherwise the
+   * global default, which lets every job be pointed at another sscm at once.
+   */
+  String getExecutable() {
+    if (surroundSCMExecutable == null || surroundSCMExecutable.trim().length() == 0
+        || surroundSCMExecutable.trim().equals(DEFAULT_EXECUTABLE))
+      return DESCRIPTOR.getDefaultExecutable();
+    return surroundSCMExecutable;
+  }
+
   public void setSurroundSCMExecutable(String surroundSCMExecutable) {
     this.surroundSCMExecutable = surroundSCMExecutable;
   }
 
+  public boolean isIncrementalUpdate() {
+    return incrementalUpdate;
+  }
+
+  public void setIncrementalUpdate(boolean incrementalUpdate) {
+    this.incrementalUpdate = incrementalUpdate;
+  }
+
+  public boolean isPollWithoutWorkspace() {
+    return pollWithoutWorkspace;
+  }
+
+  public void setPollWithoutWorkspace(boolean pollWithoutWorkspace) {
+    this.pollWithoutWorkspace = pollWithoutWorkspace;
+  }
+
+  public String getPollingNode() {
+    return pollingNode;
+  }
+
+  public void setPollingNode(String pollingNode) {
+    this.pollingNode = pollingNode;
+  }
+
+  public boolean isUseMirror() {
+    return useMirror;
+  }
+
+  public void setUseMirror(boolean useMirror) {
+    this.useMirror = useMirror;
+  }
+
+  public String getPartitions() {
+    return partitions;
+  }
+
+  public void setPartitions(String partitions) {
+    this.partitions = partitions;
+  }
+
+  public int getParallelGets() {
+    return parallelGets;
+  }
+
+  public void setParallelGets(int parallelGets) {
+    this.parallelGets = parallelGets;
+  }
+
+  public boolean isRetryFailedPartitions() {
+    return retryFailedPartitions;
+  }
+
+  public void setRetryFailedPartitions(boolean retryFailedPartitions) {
+    this.retryFailedPartitions = retryFailedPartitions;
+  }
+
+  public String getIncludedPaths() {
+    return includedPaths;
+  }
+
+  public void setIncludedPaths(String includedPaths) {
+    this.includedPaths = includedPaths;
+  }
+
+  public String getExcludedPaths() {
+    return excludedPaths;
+  }
+
+  public void setExcludedPaths(String excludedPaths) {
+    this.excludedPaths = excludedPaths;
+  }
+
+  /**
+   * The name of the global server profile to connect with, null to use the
+   * job's own connection settings.
+   */
+  public String getServerProfile() {
+    return serverProfile;
+  }
+
+  public void setServerProfile(String serverProfile) {
+    this.serverProfile = Util.fixEmptyAndTrim(serverProfile);
+  }
+
+  /**
+   * Further branches, one per line as <tt>branch</tt> or
+   * <tt>branch | repository</tt>, whose changes also trigger a build.
+   */
+  public String getWatchedSources() {
+    return watchedSources;
+  }
+
+  public void setWatchedSources(String watchedSources) {
+    this.watchedSources = Util.fixEmptyAndTrim(watchedSources);
+  }
+
+  List<SurroundSCMWatchedSource> getWatchedSourceList() {
+    return SurroundSCMWatchedSource.parse(watchedSources, repository);
+  }
+
+  /**
+   * The connection settings in effect: the named profile, or the job's own
+   * settings if it names none or the profile no longer exists.
+   */
+  SurroundSCMServerProfile getConnection() {
+    if (serverProfile != null) {
+      SurroundSCMServerProfile profile = DESCRIPTOR.getProfile(serverProfile);
+      if (profile != null)
+        return profile;
+    }
+    return new SurroundSCMServerProfile(null, server, serverPort, userName, password, rsaKeyPath);
+  }
+
+  /**
+   * Checks the job's connection before talking to the server.
+   *
+   * @return why the server cannot be used now, or null if it can.
+   */
+  String checkConnection() {
+    if (serverProfile != null && DESCRIPTOR.getProfile(serverProfile) == null)
+      return "Server profile " + serverProfile + " does not exist";
+    if (DESCRIPTOR.isDisableServerProbe())
+      return null;
+    SurroundSCMServerHealth.Status health = DESCRIPTOR.getServerHealth().watch(getConnection());
+    return health != null && health.isDown() ? health.describe() : null;
+  }
+
+  SurroundSCMPathFilter getPathFilter() {
+    return new SurroundSCMPathFilter(repository, includedPaths, excludedPaths);
+  }
+
+  /**
+   * The configured subtrees, relative to the repository.
+   */
+  List<String> getPartitionList() {
+    List<String> list = new ArrayList<String>();
+    if (partitions == null)
+      return list;
+    for (String p : partitions.split("[,\\n]")) {
+      p = p.trim();
+      while (p.startsWith("/"))
+        p = p.substring(1);
+      while (p.endsWith("/"))
+        p = p.substring(0, p.length() - 1);
+      if (p.length() > 0 && !list.contains(p))
+        list.add(p);
+    }
+    return list;
+  }
+
 
   /**
    * Singleton descriptor.
@@ -154,9 +605,15 @@ public final class SurroundSCM extends SCM {
   public static final String SURROUND_DATETIME_FORMAT_STR = "yyyyMMddHHmmss";
   public static final String SURROUND_DATETIME_FORMAT_STR_2 = "yyyyMMddHH:mm:ss";
 
+  // above this many sscm gets an incremental update is slower than a full get
+  static final int MAX_INCREMENTAL_GETS = 20;
+
   @DataBoundConstructor
   public SurroundSCM(String rsaKeyPath, String server, String serverPort, String userName,
-                     String password, String branch, String repository, String surroundSCMExecutable) {
+                     String password, String branch, String repository, String surroundSCMExecutable,
+                     boolean incrementalUpdate, boolean pollWithoutWorkspace, String pollingNode,
+                     boolean useMirror, String partitions, int parallelGets, boolean retryFailedPartitions,
+                     String includedPaths, String excludedPaths, String serverProfile, String watchedSources) {
     this.rsaKeyPath = rsaKeyPath;
     this.server = server;
     this.serverPort = serverPort;
@@ -165,6 +622,17 @@ public final class SurroundSCM extends SCM {
     this.branch = branch;
     this.repository = repository;
     this.surroundSCMExecutable = surroundSCMExecutable;
+    this.incrementalUpdate = incrementalUpdate;
+    this.pollWithoutWorkspace = pollWithoutWorkspace;
+    this.pollingNode = pollingNode;
+    this.useMirror = useMirror;
+    this.partitions = partitions;
+    this.parallelGets = parallelGets;
+    this.retryFailedPartitions = retryFailedPartitions;
+    this.includedPaths = includedPaths;
+    this.excludedPaths = excludedPaths;
+    this.serverProfile = Util.fixEmptyAndTrim(serverProfile);
+    this.watchedSources = Util.fixEmptyAndTrim(watchedSources);
   }
 
   public SurroundSCM() {
@@ -203,6 +671,15 @@ public final class SurroundSCM extends SCM {
     return scmRevisionState;
   }
 
+  /**
+   * Polling only lists changes on the server, so it can run anywhere when the
+   * job asks for it.
+   */
+  @Override
+  public boolean requiresWorkspaceForPolling() {
+    return !pollWithoutWorkspace;
+  }
+
   @Override
   /* 
    */
@@ -213,22 +690,215 @@ public final class SurroundSCM extends SCM {
 
     SimpleDateFormat scm_datetime_formatter = new SimpleDateFormat(SURROUND_DATETIME_FORMAT_STR);
 
-    Date  lastBuild = ((SurroundSCMRevisionState)baseline).getDate();
-    int   lastBuildNum = ((SurroundSCMRevisionState)baseline).getBuildNumber();
-
-    Date now = new Date();
-    File temporaryFile = File.createTempFile("changes", "txt");
+    SurroundSCMRevisionState state = (SurroundSCMRevisionState)baseline;
+    Date  lastBuild = state.getDate();
+    int   lastBuildNum = state.getBuildNumber();
 
     listener.getLogger().println("Calculating changes since build #" + lastBuildNum + " which happened at " + scm_datetime_formatter.format(lastBuild) + " pluginVer: " + pluginVersion);
 
-    double countChanges = determineChangeCount(launcher, workspace, listener, lastBuild,now,temporaryFile);
+    // earlier polls already counted the changes up to the cursor, only ask for what came after it
+    Date from = state.getQueryStart(DESCRIPTOR.getClockSkewMargin() * 1000L);
+    if (state.getLastChange() != null)
+      listener.getLogger().println(state.getChangeCount() + " change(s) already seen up to " + scm_datetime_formatter.format(state.getLastChange()) + ", querying from " + scm_datetime_formatter.format(from));
 
-    if(!temporaryFile.delete())
-    {
-      listener.getLogger().println("Failed to delete temporary file [" + temporaryFile.getAbsolutePath() + "] marking the file to be deleted when Jenkins restarts.");
-      temporaryFile.deleteOnExit();
+    SurroundSCMScheduler.ServerQueue serverQueue = DESCRIPTOR.getScheduler().getQueue(getServerKey());
+    if (serverQueue.isBackingOff()) {
+      serverQueue.skip();
+      listener.getLogger().println("Server " + getServerKey() + " is failing, not polling it for another " + serverQueue.getBackoffSeconds() + "s.");
+      return toPollingResult(state, state, state.getChangeCount());
+    }
+
+    String unavailable = checkConnection();
+    if (unavailable != null) {
+      listener.getLogger().println(unavailable + ", not polling it.");
+      return toPollingResult(state, state, state.getChangeCount());
+    }
+
+    if (pollWithoutWorkspace) {
+      launcher = createPollingLauncher(listener);
+      workspace = null;
+    }
+
+    // spread polls that were all scheduled for the same instant
+    SurroundSCMPollingService.Jitter jitter = new SurroundSCMPollingService.Jitter(
+          DESCRIPTOR.getPollJitter() > 0 ? RANDOM.nextInt(DESCRIPTOR.getPollJitter() * 1000) : 0);
+
+    // the changes themselves are only needed to apply the path filter, and on
+    // the first poll since the build, to place the cursor and leave them for
+    // the checkout; later polls only need their count
+    boolean keepOutput = state.getLastChange() == null || !getPathFilter().isEmpty();
+    SurroundSCMPollingService.Snapshot changes;
+    try {
+      changes = DESCRIPTOR.getPollingService().getChanges(this, project.getFullName(),
+            from, DESCRIPTOR.getPollingCacheTtl() * 1000L, keepOutput, jitter, launcher, workspace, listener);
+    } catch (SurroundSCMTimeoutException e) {
+      // a hung server is not a broken job: keep the state and try again next poll
+      listener.getLogger().println("Polling timed out: " + e.getMessage() + ". Will try again on the next poll.");
+      return toPollingResult(state, state, state.getChangeCount());
+    }
+    if (changes == null)
+      return toPollingResult(state, state, state.getChangeCount());
+
+    SurroundSCMRevisionState remote;
+    int countChanges;
+    if (changes.hasOutput()) {
+      remote = state.advance(changes, from, getPathFilter(), DESCRIPTOR.getClockSkewMargin() * 1000L);
+      countChanges = remote.getChangeCount();
+    } else {
+      // only the count is known, so leave the cursor where it is. The query
+      // starts at or before the cursor and overlaps the changes already
+      // counted, so its count replaces theirs rather than adding to it
+      remote = state;
+      countChanges = Math.max(state.getChangeCount(), changes.countSince(from));
+    }
+    listener.getLogger().println("Number of changes determined to be: "+countChanges);
+
+    List<SurroundSCMWatchedSource> watched = getWatchedSourceList();
+    for (Iterator<SurroundSCMWatchedSource> it = watched.iterator(); it.hasNext();) {
+      SurroundSCMWatchedSource source = it.next();
+      if (source.isSame(branch, repository)) {
+        listener.getLogger().println("Watched source " + source.getLabel() + " is the job's own branch and repository, its changes are counted once.");
+        it.remove();
+      }
+    }
+    int watchedChanges = 0;
+    if (!watched.isEmpty()) {
+      Map<String, SurroundSCMRevisionState.Cursor> cursors = new HashMap<String, SurroundSCMRevisionState.Cursor>();
+      Map<String, Integer> counts = countWatchedChanges(project.getFullName(), watched, state, cursors, jitter,
+                                                        launcher, workspace, listener);
+      for (Integer count : counts.values())
+        watchedChanges += Math.max(count, 0);
+      remote = remote.withSourceCursors(cursors);
+    }
+
+    if (state.getLastChange() == null) {
+      if (countChanges > 0) {
+        byte[] output = changes.outputSince(lastBuild);
+        if (output != null)
+          DESCRIPTOR.getChangeCache().put(project.getFullName(), SurroundSCMPollingService.keyOf(this), lastBuild,
+                                          changes.getTo(), output);
+      }
+    } else if (countChanges > state.getChangeCount()) {
+      // the changes an earlier poll left for the checkout are no longer complete
+      DESCRIPTOR.getChangeCache().take(project.getFullName(), SurroundSCMPollingService.keyOf(this), lastBuild);
+    }
+
+    return toPollingResult(state, remote, countChanges + watchedChanges);
+  }
+
+  /**
+   * Counts the changes since the build of the given state on each watched
+   * source and logs them. Like the job's own source, each watched source is
+   * only queried from its cursor in the state, and the changes already
+   * counted there are not counted again. sscm lists the changes of one
+   * branch per call, so the sources are grouped by branch and each group is
+   * listed once at the repository that holds all of its sources, from the
+   * earliest cursor of the group. The calls go through the polling service,
+   * so jobs watching the same branches share them.
+   *
+   * @param cursors receives the cursor of each source after the poll.
+   * @param jitter the poll's delay before its first query, or null.
+   * @return the count per source label, -1 where the changes could not be
+   *         listed.
+   */
+  Map<String, Integer> countWatchedChanges(String job, List<SurroundSCMWatchedSource> watched,
+                                           SurroundSCMRevisionState state,
+                                           Map<String, SurroundSCMRevisionState.Cursor> cursors,
+                                           SurroundSCMPollingService.Jitter jitter,
+                                           Launcher launcher, FilePath workspace, TaskListener listener)
+        throws IOException, InterruptedException {
+    Map<String, List<SurroundSCMWatchedSource>> byBranch = new LinkedHashMap<String, List<SurroundSCMWatchedSource>>();
+    for (SurroundSCMWatchedSource source : watched) {
+      List<SurroundSCMWatchedSource> group = byBranch.get(source.getBranch());
+      if (group == null) {
+        group = new ArrayList<SurroundSCMWatchedSource>();
+        byBranch.put(source.getBranch(), group);
+      }
+      group.add(source);
     }
 
+    Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+    for (Map.Entry<String, List<SurroundSCMWatchedSource>> e : byBranch.entrySet())
+      countWatchedChanges(job, e.getKey(), e.getValue(), state, cursors, jitter, launcher, workspace, listener, counts);
+
+    SimpleDateFormat scm_datetime_formatter = new SimpleDateFormat(SURROUND_DATETIME_FORMAT_STR);
+    for (Map.Entry<String, Integer> e : counts.entrySet()) {
+      listener.getLogger().println("Watched source " + e.getKey() + ": " + (e.getValue() < 0 ? "could not list changes"
+            : e.getValue() + " change(s) since " + scm_datetime_formatter.format(state.getDate())));
+    }
+    return counts;
+  }
+
+  private void countWatchedChanges(String job, String branch, List<SurroundSCMWatchedSource> group,
+                                   SurroundSCMRevisionState state, Map<String, SurroundSCMRevisionState.Cursor> cursors,
+                                   SurroundSCMPollingService.Jitter jitter,
+                                   Launcher launcher, FilePath workspace, TaskListener listener,
+                                   Map<String, Integer> counts) throws IOException, InterruptedException {
+    String common = SurroundSCMWatchedSource.commonRepository(group);
+    if (common == null) {
+      // different mainlines cannot be listed together
+      for (SurroundSCMWatchedSource source : group)
+        countWatchedChanges(job, branch, Collections.singletonList(source), state, cursors, jitter, launcher, workspace,
+                            listener, counts);
+      return;
+    }
+
+    long margin = DESCRIPTOR.getClockSkewMargin() * 1000L;
+    Date since = null;
+    // the changes are needed to place a cursor and to tell several sources apart
+    boolean keepOutput = group.size() > 1;
+    for (SurroundSCMWatchedSource source : group) {
+      SurroundSCMRevisionState.Cursor cursor = state.getSourceCursor(source.getLabel());
+      Date from = cursor.getQueryStart(state.getDate(), margin);
+      if (since == null || from.before(since))
+        since = from;
+      keepOutput |= cursor.getLastChange() == null;
+      if (cursors != null)
+        cursors.put(source.getLabel(), cursor);
+    }
+
+    SurroundSCMPollingService.Snapshot changes = null;
+    try {
+      changes = DESCRIPTOR.getPollingService().getChanges(this, branch, common, job, since,
+            DESCRIPTOR.getPollingCacheTtl() * 1000L, keepOutput, jitter, launcher, workspace, listener);
+    } catch (SurroundSCMTimeoutException e) {
+      listener.getLogger().println("Listing the changes of branch " + branch + " timed out: " + e.getMessage());
+    }
+    if (changes == null) {
+      for (SurroundSCMWatchedSource source : group)
+        counts.put(source.getLabel(), -1);
+      return;
+    }
+
+    if (!changes.hasOutput()) {
+      if (group.size() == 1) {
+        // only the count is known: the cursor stays, and the query overlaps
+        // the changes it already counted
+        SurroundSCMRevisionState.Cursor cursor = state.getSourceCursor(group.get(0).getLabel());
+        counts.put(group.get(0).getLabel(), Math.max(cursor.getChangeCount(), changes.countSince(since)));
+      } else {
+        // too many changes to split up between the sources, list them one by one
+        for (SurroundSCMWatchedSource source : group)
+          countWatchedChanges(job, branch, Collections.singletonList(source), state, cursors, jitter, launcher,
+                              workspace, listener, counts);
+      }
+      return;
+    }
+
+    for (SurroundSCMWatchedSource source : group) {
+      SurroundSCMRevisionState.Cursor cursor = state.getSourceCursor(source.getLabel());
+      cursor = cursor.advance(changes, cursor.getQueryStart(state.getDate(), margin), source, margin);
+      if (cursors != null)
+        cursors.put(source.getLabel(), cursor);
+      counts.put(source.getLabel(), cursor.getChangeCount());
+    }
+  }
+
+  /**
+   * The polling decision for a number of changes, kept apart from the sscm
+   * call so it can be exercised with canned output.
+   */
+  PollingResult toPollingResult(int countChanges) {
     if (countChanges == 0)
       return PollingResult.NO_CHANGES;
     else if (countChanges < changesThreshold)
@@ -237,6 +907,13 @@ public final class SurroundSCM extends SCM {
     return PollingResult.BUILD_NOW;
   }
 
+  /**
+   * The polling decision with the state the next poll continues from.
+   */
+  PollingResult toPollingResult(SurroundSCMRevisionState baseline, SurroundSCMRevisionState remote, int countChanges) {
+    return new PollingResult(baseline, remote, toPollingResult(countChanges).change);
+  }
+
   // Obtains a fresh workspace of the module(s) into the specified directory
   // of the specified machine. We'll use sscm get
   @Override
@@ -248,49 +925,93 @@ public final class SurroundSCM extends SCM {
 
     SimpleDateFormat scm_datetime_formatter = new SimpleDateFormat(SURROUND_DATETIME_FORMAT_STR_2);
 
-    if (server != null )
-      listener.getLogger().println("server: "+server);
+    String connectedServer = getConnection().getServer();
+    if (connectedServer != null )
+      listener.getLogger().println("server: "+connectedServer);
+
+    String unavailable = checkConnection();
+    if (unavailable != null) {
+      listener.error(unavailable + ".");
+      return false;
+    }
+
+    SurroundSCMBuildMetrics metrics = new SurroundSCMBuildMetrics();
+    build.addAction(metrics);
 
     Date currentDate = new Date(); //defaults to current
 
-    ArgumentListBuilder cmd = new ArgumentListBuilder();
-    cmd.add(getSurroundSCMExecutable());//will default to sscm user can put in path
-    cmd.add("get");
-    cmd.add("/" );
-    cmd.add("-wreplace");
-    cmd.addMasked("-y".concat(userName).concat(":").concat(password));
-    if(rsaKeyPath != null && !rsaKeyPath.isEmpty()) {
-      cmd.add("-z".concat(rsaKeyPath));
+    final Run<?, ?> lastBuild = build.getPreviousBuild();
+    final Date lastBuildDate;
+
+    if (lastBuild == null) {
+      lastBuildDate = new Date();
+      lastBuildDate.setTime(0); // default to January 1, 1970
+      listener.getLogger().print("Never been built.");
+    } else {
+      // the previous build was pinned to the snapshot it fetched, which can be
+      // earlier than its start, so the changes since then start at that snapshot
+      SurroundSCMRevisionState lastState = lastBuild.getAction(SurroundSCMRevisionState.class);
+      lastBuildDate = lastState != null ? lastState.getDate() : lastBuild.getTimestamp().getTime();
     }
-    else {
-      cmd.add("-z".concat(server).concat(":").concat(serverPort));
+
+    // If polling already listed the changes since the previous build's snapshot,
+    // build exactly what it saw and reuse its output as the changelog.
+    SurroundSCMChangeCache.Changes polled = null;
+    if (lastBuild != null)
+      polled = DESCRIPTOR.getChangeCache().take(build.getProject().getFullName(), SurroundSCMPollingService.keyOf(this),
+                                                lastBuildDate);
+    if (polled != null) {
+      currentDate = polled.getTo();
+      listener.getLogger().println("Reusing the changes found by polling up to " + scm_datetime_formatter.format(currentDate));
     }
-    cmd.add("-b".concat(branch));
-    cmd.add("-p".concat(repository));
-    cmd.add("-d".concat(workspace.getRemote()));
-    cmd.add("-r");
-    cmd.add("-s" + scm_datetime_formatter.format(currentDate));
 
-    int cmdResult = launcher.launch().cmds(cmd).envs(new String[0])
-          .stdin(null).stdout(listener.getLogger()).pwd(workspace).join();
-    if (cmdResult == 0)
-    {
-      final Run<?, ?> lastBuild = build.getPreviousBuild();
-      final Date lastBuildDate;
+    // the changelog only depends on the fixed timestamp, so list the changes
+    // while the workspace is being fetched
+    workspace.mkdirs();
+    Future<Boolean> changeLog = null;
+    if (polled == null)
+      changeLog = captureChangeLogAsync(launcher, workspace, listener, lastBuildDate, currentDate, changelogFile, metrics);
 
-      if (lastBuild == null) {
-        lastBuildDate = new Date();
-        lastBuildDate.setTime(0); // default to January 1, 1970
-        listener.getLogger().print("Never been built.");
-      } else
-        lastBuildDate = lastBuild.getTimestamp().getTime();
+    boolean fetched = false;
+    try {
+      if (useMirror)
+        fetched = fillFromMirror(build.getBuiltOn(), launcher, workspace, listener, currentDate, metrics);
+      else if (incrementalUpdate)
+        fetched = updateWorkspace(launcher, workspace, listener, currentDate, metrics);
+      else if (parallelGets > 1 && getPartitionList().isEmpty() && !getPathFilter().hasIncludes())
+        fetched = discoveredGet(launcher, workspace, listener, currentDate, metrics, polled);
+      else
+        fetched = getWorkspace(launcher, workspace, listener, currentDate, metrics);
+    } catch (SurroundSCMTimeoutException e) {
+      listener.error(e.getMessage());
+    } finally {
+      if (!fetched && changeLog != null)
+        changeLog.cancel(true);
+    }
 
+    if (fetched)
+    {
       // Setup the revision state based on what we KNOW to be correct information.
-      SurroundSCMRevisionState scmRevisionState = new SurroundSCMRevisionState(currentDate, build.getNumber());
+      SurroundSCMRevisionState scmRevisionState = new SurroundSCMRevisionState(currentDate, build.getNumber(),
+            findChangedSources(build, launcher, workspace, listener, lastBuild));
       build.addAction(scmRevisionState);
       listener.getLogger().println("Checkout calculated ScmRevisionState for build #" + build.getNumber() + " to be the datetime " + scm_datetime_formatter.format(currentDate) + " pluginVer: " + pluginVersion);
 
-      returnValue = captureChangeLog(launcher, workspace,listener, lastBuildDate, currentDate, changelogFile);
+      if (polled != null)
+        returnValue = writeChangeLog(polled.getOutput(), listener, changelogFile);
+      else {
+        try {
+          returnValue = await(changeLog);
+        } catch (SurroundSCMTimeoutException e) {
+          listener.error(e.getMessage());
+          returnValue = false;
+        }
+      }
+
+      if (returnValue && DESCRIPTOR.isCompactChangeLog())
+        SurroundSCMCompactChangeLog.convert(changelogFile);
+      if (returnValue)
+        recordFileHistory(build, changelogFile, listener);
     }
     else
       returnValue = false;
@@ -299,13 +1020,918 @@ public final class SurroundSCM extends SCM {
     return returnValue;
   }
 
-  @Override
-  public ChangeLogParser createChangeLogParser() {
-    return new SurroundSCMChangeLogParser();
+  /**
+   * The labels of the watched sources that changed since the previous build,
+   * for the build to see which of them it was started for. Polling listed
+   * the same changes a moment ago, so this usually comes from the polling
+   * service's cache.
+   *
+   * @return null if the job watches no further sources.
+   */
+  private String[] findChangedSources(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace,
+                                      BuildListener listener, Run<?, ?> lastBuild) throws InterruptedException {
+    List<SurroundSCMWatchedSource> watched = getWatchedSourceList();
+    if (watched.isEmpty())
+      return null;
+    List<String> changed = new ArrayList<String>();
+    SurroundSCMRevisionState lastState = lastBuild == null ? null : lastBuild.getAction(SurroundSCMRevisionState.class);
+    if (lastState == null) {
+      // nothing to compare with, so every source counts as changed
+      for (SurroundSCMWatchedSource source : watched)
+        changed.add(source.getLabel());
+      return changed.toArray(new String[changed.size()]);
+    }
+    try {
+      // counted afresh from the previous build, without the cursors polling keeps
+      Map<String, Integer> counts = countWatchedChanges(build.getProject().getFullName(), watched,
+            new SurroundSCMRevisionState(lastState.getDate(), lastState.getBuildNumber()), null, null,
+            launcher, workspace, listener);
+      // a source whose changes could not be listed may have changed
+      for (Map.Entry<String, Integer> e : counts.entrySet()) {
+        if (e.getValue() != 0)
+          changed.add(e.getKey());
+      }
+    } catch (IOException e) {
+      e.printStackTrace(listener.error("Failed to list the changes of the watched sources"));
+      return null;
+    }
+    return changed.toArray(new String[changed.size()]);
   }
 
-  private boolean captureChangeLog(Launcher launcher, FilePath workspace,
-                                   BuildListener listener, Date lastBuildDate, Date currentDate, File changelogFile) throws IOException, InterruptedException {
+  /**
+   * Tells the build which branch and repository it was made from and which
+   * watched sources changed since the previous build.
+   */
+  @Override
+  public void buildEnvVars(AbstractBuild<?, ?> build, Map<String, String> env) {
+    super.buildEnvVars(build, env);
+    if (branch != null)
+      env.put("SURROUND_BRANCH", branch);
+    if (repository != null)
+      env.put("SURROUND_REPOSITORY", repository);
+    SurroundSCMRevisionState state = build.getAction(SurroundSCMRevisionState.class);
+    if (state != null && state.getChangedSources() != null) {
+      StringBuilder sb = new StringBuilder();
+      for (String label : state.getChangedSources()) {
+        if (sb.length() > 0)
+          sb.append(',');
+        sb.append(label);
+      }
+      env.put("SURROUND_CHANGED_SOURCES", sb.toString());
+    }
+  }
+
+  /**
+   * Adds the build's changelog to the job's file history. The history only
+   * serves queries, so failing to record it does not fail the build.
+   */
+  private void recordFileHistory(AbstractBuild<?, ?> build, File changelogFile, BuildListener listener) {
+    try {
+      DESCRIPTOR.getFileHistory(build.getProject()).add(build.getNumber(), changelogFile);
+    } catch (IOException e) {
+      e.printStackTrace(listener.error("Failed to record the file history of this build"));
+    }
+  }
+
+  /**
+   * Fetches the whole repository into the workspace with a recursive
+   * <tt>sscm get /</tt> pinned to the given timestamp, or with one get per
+   * configured subtree when parallel gets are enabled.
+   */
+  private boolean getWorkspace(Launcher launcher, FilePath workspace, TaskListener listener,
+                               Date currentDate, SurroundSCMBuildMetrics metrics) throws IOException, InterruptedException {
+    List<String> included = getPathFilter().getIncludeRoots();
+    if (included != null)
+      return partitionedGet(launcher, workspace, listener, currentDate, metrics, included, false).isEmpty();
+
+    List<String> configured = getPartitionList();
+    if (parallelGets > 1 && !configured.isEmpty())
+      return partitionedGet(launcher, workspace, listener, currentDate, metrics, configured, true).isEmpty();
+
+    SimpleDateFormat scm_datetime_formatter = new SimpleDateFormat(SURROUND_DATETIME_FORMAT_STR_2);
+
+    ArgumentListBuilder cmd = new ArgumentListBuilder();
+    cmd.add(getExecutable());//will default to sscm user can put in path
+    cmd.add("get");
+    cmd.add("/" );
+    cmd.add("-wreplace");
+    addConnectionArgs(cmd);
+    cmd.add("-b".concat(branch));
+    cmd.add("-p".concat(repository));
+    cmd.add("-d".concat(workspace.getRemote()));
+    cmd.add("-r");
+    cmd.add("-s" + scm_datetime_formatter.format(currentDate));
+
+    // a failed get leaves what it fetched; the next attempt at the same
+    // timestamp only has to replace the rest
+    for (int retry = 0; ; retry++) {
+      SurroundSCMRetry.TailOutputStream out = new SurroundSCMRetry.TailOutputStream(listener.getLogger());
+      boolean transientFailure;
+      try {
+        if (runCommand(launcher, cmd, out, workspace, listener, metrics) == 0) {
+          // a partitioned checkout that stopped partway is superseded
+          SurroundSCMCheckoutProgress.clear(workspace);
+          return true;
+        }
+        transientFailure = SurroundSCMRetry.isTransient(out.getTail());
+      } catch (SurroundSCMTimeoutException e) {
+        if (retry >= DESCRIPTOR.getCheckoutRetries())
+          throw e;
+        transientFailure = true;
+      }
+      if (!transientFailure || retry >= DESCRIPTOR.getCheckoutRetries())
+        return false;
+      waitBeforeRetry(retry, "the get", listener);
+    }
+  }
+
+  private static void waitBeforeRetry(int retry, String what, TaskListener listener) throws InterruptedException {
+    long delay = SurroundSCMRetry.delayMillis(retry, DESCRIPTOR.getRetryDelay());
+    listener.getLogger().println("Retrying " + what + " in " + delay / 1000 + "s (retry " + (retry + 1) + " of "
+                                 + DESCRIPTOR.getCheckoutRetries() + ").");
+    Thread.sleep(delay);
+  }
+
+  /**
+   * Fetches the workspace in parallel, one subtree per top-level directory of
+   * the repository. The directories are taken from the changes sscm lists,
+   * from the start of the history the first time and after that only since
+   * the list recorded in the workspace, so build output in the workspace is
+   * never fetched as a partition and the gets do not wait for the changelog.
+   * Falls back to a single full get when no directory is known or one cannot
+   * be fetched; a directory that fails while the full get works is gone from
+   * the repository and is dropped from the list.
+   */
+  private boolean discoveredGet(Launcher launcher, FilePath workspace, BuildListener listener, Date currentDate,
+                                SurroundSCMBuildMetrics metrics, SurroundSCMChangeCache.Changes polled)
+        throws IOException, InterruptedException {
+    String source = getProgressSource();
+    SurroundSCMSubtreeList known = SurroundSCMSubtreeList.load(workspace, source);
+    Date since = known == null ? new Date(0) : known.getTimestamp();
+    Set<String> subtrees = known == null ? new TreeSet<String>() : known.getSubtrees();
+
+    if (since.before(currentDate)) {
+      SubtreeCollector added = new SubtreeCollector(repository);
+      if (known != null && polled != null && !polled.getFrom().after(since) && !polled.getTo().before(currentDate)) {
+        added.write(polled.getOutput());
+      } else {
+        listener.getLogger().println(known == null ? "Listing the directories of the repository."
+                                                   : "Listing the directories added since the previous checkout.");
+        int cmdResult = runCommand(launcher, changesCommand(since, currentDate), added, workspace, listener, metrics);
+        if (cmdResult != 0) {
+          listener.getLogger().println("Listing changes failed with exit code " + cmdResult + ", performing a single full get.");
+          return getWorkspace(launcher, workspace, listener, currentDate, metrics);
+        }
+      }
+      subtrees.addAll(added.getSubtrees());
+    }
+
+    if (subtrees.isEmpty()) {
+      listener.getLogger().println("No subtrees known for this workspace, performing a single full get.");
+      return getWorkspace(launcher, workspace, listener, currentDate, metrics);
+    }
+    List<String> failed = partitionedGet(launcher, workspace, listener, currentDate, metrics,
+                                         new ArrayList<String>(subtrees), true);
+    if (!failed.isEmpty()) {
+      listener.getLogger().println("Falling back to a single full get.");
+      SurroundSCMSubtreeList.clear(workspace);
+      if (!getWorkspace(launcher, workspace, listener, currentDate, metrics))
+        return false;
+      subtrees.removeAll(failed);
+    }
+    new SurroundSCMSubtreeList(currentDate, subtrees).save(workspace, source);
+    return true;
+  }
+
+  /**
+   * The <tt>sscm cc</tt> call listing the changes to the whole repository in
+   * the given range.
+   */
+  private ArgumentListBuilder changesCommand(Date from, Date to) {
+    SimpleDateFormat scm_datetime_formatter = new SimpleDateFormat(SURROUND_DATETIME_FORMAT_STR);
+    ArgumentListBuilder cmd = new ArgumentListBuilder();
+    cmd.add(getExecutable());
+    cmd.add("cc");
+    cmd.add("/");
+    cmd.add("-d" + scm_datetime_formatter.format(from) + ":" + scm_datetime_formatter.format(to));
+    addConnectionArgs(cmd);
+    cmd.add("-b".concat(branch));
+    cmd.add("-p".concat(repository));
+    cmd.add("-r");
+    return cmd;
+  }
+
+  /**
+   * Fetches each of the given subtrees, and optionally the files at the root
+   * of the repository, with its own sscm process, running up to the
+   * configured number at once. Partitions that fail in a way that looks
+   * transient, or any failed partition if asked to, are fetched again after
+   * a growing delay.
+   * <p>
+   * Finished partitions are recorded in the target's
+   * {@link SurroundSCMCheckoutProgress}. If an earlier checkout of the same
+   * source stopped partway, only its missing partitions are fetched, at its
+   * timestamp, and the result is then brought to the given timestamp
+   * incrementally.
+   *
+   * @return the subtrees that could not be fetched, "" standing for the root
+   *         files.
+   */
+  private List<String> partitionedGet(Launcher launcher, FilePath target, TaskListener listener, Date currentDate,
+                                      SurroundSCMBuildMetrics metrics, List<String> subtrees,
+                                      boolean rootFiles) throws IOException, InterruptedException {
+    List<String> pending = new ArrayList<String>(subtrees.size() + 1);
+    if (rootFiles)
+      pending.add("");
+    pending.addAll(subtrees);
+
+    String source = getProgressSource();
+    SurroundSCMCheckoutProgress progress = SurroundSCMCheckoutProgress.load(target, source);
+    if (progress != null && !progress.getTimestamp().after(currentDate)) {
+      SimpleDateFormat scm_datetime_formatter = new SimpleDateFormat(SURROUND_DATETIME_FORMAT_STR_2);
+      listener.getLogger().println("Resuming the checkout at " + scm_datetime_formatter.format(progress.getTimestamp())
+                                   + " that stopped after " + progress.getDone() + " partition(s).");
+      for (Iterator<String> i = pending.iterator(); i.hasNext(); ) {
+        if (progress.isDone(i.next()))
+          i.remove();
+      }
+    } else {
+      progress = SurroundSCMCheckoutProgress.start(target, source, currentDate);
+    }
+    Date fetchDate = progress.getTimestamp();
+    listener.getLogger().println("Fetching " + pending.size() + " partitions with up to " + Math.max(1, parallelGets) + " sscm processes.");
+
+    List<String> failed = new ArrayList<String>();
+    for (int retry = 0; ; retry++) {
+      List<String> retryable = new ArrayList<String>();
+      List<String> attemptFailed = fetchPartitions(launcher, target, listener, fetchDate, metrics, pending, progress, retryable);
+      if (retryFailedPartitions)
+        retryable = new ArrayList<String>(attemptFailed);
+      attemptFailed.removeAll(retryable);
+      failed.addAll(attemptFailed);
+      if (retryable.isEmpty())
+        break;
+      if (retry >= DESCRIPTOR.getCheckoutRetries()) {
+        failed.addAll(retryable);
+        break;
+      }
+      waitBeforeRetry(retry, retryable.size() + " failed partition(s)", listener);
+      pending = retryable;
+    }
+    if (!failed.isEmpty()) {
+      listener.error("Failed to fetch partition(s): " + failed + "; the next build resumes from here.");
+      return failed;
+    }
+
+    if (fetchDate.before(currentDate)) {
+      // the resumed partitions are at the earlier timestamp
+      SurroundSCMWorkspaceManifest manifest = new SurroundSCMWorkspaceManifest();
+      manifest.setTimestamp(fetchDate);
+      if (!applyDelta(launcher, target, listener, manifest, currentDate, metrics)) {
+        listener.getLogger().println("Cannot bring the resumed checkout forward, fetching all partitions again.");
+        SurroundSCMCheckoutProgress.clear(target);
+        return partitionedGet(launcher, target, listener, currentDate, metrics, subtrees, rootFiles);
+      }
+    }
+    SurroundSCMCheckoutProgress.clear(target);
+    return failed;
+  }
+
+  /**
+   * Identifies what a checkout fetches, so only an unfinished checkout of
+   * the same branch, repository and path filters is resumed.
+   */
+  private String getProgressSource() {
+    return Util.getDigestOf(SurroundSCMPollingService.keyOf(this) + '|' + Util.fixNull(includedPaths)
+                           + '|' + Util.fixNull(excludedPaths));
+  }
+
+  /**
+   * Fetches the given partitions, recording each one that finishes.
+   *
+   * @param retryable receives the failed partitions whose failure looks
+   *                  transient.
+   *
+   * @return the partitions that failed.
+   */
+  private List<String> fetchPartitions(final Launcher launcher, final FilePath target, final TaskListener listener,
+                                       final Date currentDate, final SurroundSCMBuildMetrics metrics,
+                                       List<String> partitions, SurroundSCMCheckoutProgress progress,
+                                       List<String> retryable) throws IOException, InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelGets, partitions.size())));
+    try {
+      Map<String, Future<Integer>> results = new LinkedHashMap<String, Future<Integer>>();
+      Map<String, SurroundSCMRetry.TailOutputStream> outputs = new HashMap<String, SurroundSCMRetry.TailOutputStream>();
+      for (final String partition : partitions) {
+        final SurroundSCMRetry.TailOutputStream out = new SurroundSCMRetry.TailOutputStream(listener.getLogger());
+        outputs.put(partition, out);
+        results.put(partition, pool.submit(new Callable<Integer>() {
+          public Integer call() throws IOException, InterruptedException {
+            return getPartition(launcher, target, out, listener, currentDate, metrics, partition);
+          }
+        }));
+      }
+
+      List<String> failed = new ArrayList<String>();
+      for (Map.Entry<String, Future<Integer>> e : results.entrySet()) {
+        String name = e.getKey().length() == 0 ? "/" : e.getKey();
+        try {
+          int cmdResult = await(e.getValue());
+          if (cmdResult == 0) {
+            progress.markDone(e.getKey());
+            continue;
+          }
+          listener.getLogger().println("Partition " + name + " failed with exit code " + cmdResult);
+          if (SurroundSCMRetry.isTransient(outputs.get(e.getKey()).getTail()))
+            retryable.add(e.getKey());
+        } catch (IOException x) {
+          listener.getLogger().println("Partition " + name + " failed: " + x.getMessage());
+          if (x instanceof SurroundSCMTimeoutException)
+            retryable.add(e.getKey());
+        }
+        failed.add(e.getKey());
+      }
+      return failed;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Fetches one subtree recursively, or only the files at the root of the
+   * repository for "".
+   */
+  private int getPartition(Launcher launcher, FilePath target, OutputStream out, TaskListener listener, Date currentDate,
+                           SurroundSCMBuildMetrics metrics, String partition) throws IOException, InterruptedException {
+    SimpleDateFormat scm_datetime_formatter = new SimpleDateFormat(SURROUND_DATETIME_FORMAT_STR_2);
+    boolean root = partition.length() == 0;
+    FilePath dir = root ? target : target.child(partition);
+    dir.mkdirs();
+
+    ArgumentListBuilder cmd = new ArgumentListBuilder();
+    cmd.add(getExecutable());
+    cmd.add("get");
+    cmd.add("/");
+    cmd.add("-wreplace");
+    addConnectionArgs(cmd);
+    cmd.add("-b".concat(branch));
+    cmd.add("-p".concat(root ? repository : repository.concat("/").concat(partition)));
+    cmd.add("-d".concat(dir.getRemote()));
+    if (!root)
+      cmd.add("-r");
+    cmd.add("-s" + scm_datetime_formatter.format(currentDate));
+
+    return runCommand(launcher, cmd, out, target, listener, metrics);
+  }
+
+  /**
+   * Brings the workspace up to the given timestamp by only fetching the files
+   * that changed since the timestamp recorded in the workspace manifest. Falls
+   * back to a full get when there is no usable manifest or the delta cannot
+   * be applied file by file.
+   */
+  private boolean updateWorkspace(Launcher launcher, FilePath workspace, TaskListener listener,
+                                  Date currentDate, SurroundSCMBuildMetrics metrics) throws IOException, InterruptedException {
+    SurroundSCMWorkspaceManifest manifest = SurroundSCMWorkspaceManifest.load(workspace);
+
+    // a half-applied update must not be trusted by the next build
+    SurroundSCMWorkspaceManifest.invalidate(workspace);
+
+    if (manifest == null || !applyDelta(launcher, workspace, listener, manifest, currentDate, metrics)) {
+      listener.getLogger().println("No usable workspace manifest, performing a full get.");
+      manifest = new SurroundSCMWorkspaceManifest();
+      if (!getWorkspace(launcher, workspace, listener, currentDate, metrics))
+        return false;
+      recordRepositoryFiles(launcher, workspace, listener, manifest, currentDate, metrics);
+    }
+
+    manifest.setTimestamp(currentDate);
+    manifest.save(workspace);
+    return true;
+  }
+
+  /**
+   * Brings the node's mirror of the branch up to the given timestamp and
+   * copies it into the workspace. Falls back to fetching into the workspace
+   * when the node has no usable mirror.
+   */
+  private boolean fillFromMirror(Node node, Launcher launcher, FilePath workspace, TaskListener listener,
+                                 Date currentDate, SurroundSCMBuildMetrics metrics) throws IOException, InterruptedException {
+    FilePath root = node == null ? null : node.getRootPath();
+    if (root == null) {
+      listener.getLogger().println("No mirror available on this node, fetching into the workspace.");
+      return getWorkspace(launcher, workspace, listener, currentDate, metrics);
+    }
+
+    SurroundSCMMirrors mirrors = DESCRIPTOR.getMirrors();
+    // jobs fetching different parts of the source need different mirrors
+    String name = SurroundSCMMirrors.nameOf(SurroundSCMPollingService.keyOf(this) + '|' + Util.fixNull(includedPaths)
+                                            + '|' + Util.fixNull(excludedPaths));
+    FilePath mirror = SurroundSCMMirrors.mirrorsOf(root).child(name);
+    ReentrantReadWriteLock lock = mirrors.lockFor(node.getNodeName(), name);
+
+    boolean tooNew;
+    lock.writeLock().lockInterruptibly();
+    try {
+      mirror.mkdirs();
+      SurroundSCMWorkspaceManifest manifest = SurroundSCMWorkspaceManifest.load(mirror);
+      // another build may already have moved the mirror past the snapshot this build wants
+      tooNew = manifest != null && manifest.getTimestamp().after(currentDate);
+      if (!tooNew) {
+        listener.getLogger().println("Updating mirror " + mirror.getRemote());
+        if (!updateWorkspace(launcher, mirror, listener, currentDate, metrics))
+          return false;
+        SurroundSCMMirrors.touch(mirror);
+        // keep others from updating the mirror until it has been copied
+        lock.readLock().lock();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    if (tooNew) {
+      listener.getLogger().println("Mirror is newer than this build's snapshot, fetching into the workspace.");
+      return getWorkspace(launcher, workspace, listener, currentDate, metrics);
+    }
+
+    try {
+      copyFromMirror(mirror, workspace, listener);
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    mirrors.evict(node.getNodeName(), SurroundSCMMirrors.mirrorsOf(root), DESCRIPTOR.getMaxMirrors(), listener);
+    return true;
+  }
+
+  /**
+   * Brings a workspace to the state of the mirror it is filled from. The
+   * workspace keeps a manifest of the versions it was given, so only the
+   * files whose version in the mirror differs, or that were changed or
+   * removed in the workspace, are copied, and the files gone from the
+   * mirror are deleted. The whole mirror is copied into a workspace without
+   * a manifest, or when the mirror's manifest lists no files.
+   */
+  private void copyFromMirror(FilePath mirror, FilePath workspace, TaskListener listener)
+        throws IOException, InterruptedException {
+    SurroundSCMWorkspaceManifest source = SurroundSCMWorkspaceManifest.load(mirror);
+    SurroundSCMWorkspaceManifest target = SurroundSCMWorkspaceManifest.load(workspace);
+    // an interrupted copy must not be taken for a complete one
+    SurroundSCMWorkspaceManifest.invalidate(workspace);
+
+    Set<String> paths = source == null ? Collections.<String>emptySet() : source.getPaths();
+    List<String> copied;
+    if (target == null || paths.isEmpty()) {
+      int files = mirror.copyRecursiveTo("**/*", SurroundSCMWorkspaceManifest.FILE_NAME + "," + SurroundSCMCheckoutProgress.FILE_NAME
+                                         + "," + SurroundSCMMirrors.USED_MARKER, workspace);
+      listener.getLogger().println("Copied " + files + " file(s) from the mirror into the workspace.");
+      if (paths.isEmpty())
+        return;
+      target = new SurroundSCMWorkspaceManifest();
+      copied = new ArrayList<String>(paths);
+    } else {
+      copied = new ArrayList<String>();
+      for (String path : paths) {
+        if (!source.getVersion(path).equals(target.getVersion(path)))
+          copied.add(path);
+      }
+      for (String path : target.findLocalChanges(workspace)) {
+        if (paths.contains(path) && source.getVersion(path).equals(target.getVersion(path)))
+          copied.add(path);
+      }
+      List<String> deleted = new ArrayList<String>();
+      for (String path : target.getPaths()) {
+        if (!paths.contains(path)) {
+          deleted.add(path);
+          target.remove(path);
+        }
+      }
+      int files = SurroundSCMMirrors.sync(mirror, workspace, copied, deleted);
+      listener.getLogger().println("Copied " + files + " changed file(s) from the mirror into the workspace"
+                                   + (deleted.isEmpty() ? "." : ", deleted " + deleted.size() + "."));
+    }
+
+    for (String path : copied)
+      target.update(path, source.getVersion(path), source.getDate(path));
+    target.stamp(workspace, copied);
+    target.setTimestamp(source.getTimestamp());
+    target.save(workspace);
+  }
+
+  /**
+   * Records the files of the repository as of a full get in the manifest,
+   * with their size and modification time in the workspace, so later
+   * updates notice files changed or removed in the workspace. The files are
+   * taken from the whole history sscm lists; without it the manifest only
+   * learns about files as they change.
+   */
+  private void recordRepositoryFiles(Launcher launcher, FilePath workspace, TaskListener listener,
+                                     SurroundSCMWorkspaceManifest manifest, Date currentDate,
+                                     SurroundSCMBuildMetrics metrics) throws IOException, InterruptedException {
+    File history = File.createTempFile("sscm-history", ".log");
+    try {
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(history));
+      int cmdResult;
+      try {
+        cmdResult = runCommand(launcher, changesCommand(new Date(0), currentDate), out, workspace, listener, metrics);
+      } finally {
+        out.close();
+      }
+      if (cmdResult != 0) {
+        listener.getLogger().println("Listing the files of the repository failed with exit code " + cmdResult
+                                     + ", changes made in the workspace will not be noticed.");
+        return;
+      }
+
+      SurroundSCMPathFilter filter = getPathFilter();
+      InputStream in = new FileInputStream(history);
+      try {
+        SurroundSCMChangeLogTokenizer tokenizer = new SurroundSCMChangeLogTokenizer(in);
+        while (tokenizer.next()) {
+          String dir = toWorkspacePath(tokenizer.get(SurroundSCMChangeLogParser.PATH));
+          String name = tokenizer.get(SurroundSCMChangeLogParser.NAME);
+          if (dir == null || !filter.accepts(tokenizer.get(SurroundSCMChangeLogParser.PATH), name))
+            continue;
+          String path = dir.length() == 0 ? name : dir.concat("/").concat(name);
+          if (isRemoval(tokenizer.get(SurroundSCMChangeLogParser.ACTION)))
+            manifest.remove(path);
+          else
+            manifest.update(path, tokenizer.get(SurroundSCMChangeLogParser.VERSION), tokenizer.get(SurroundSCMChangeLogParser.DATE));
+        }
+      } finally {
+        in.close();
+      }
+    } finally {
+      history.delete();
+    }
+    // files renamed or moved away are not in the workspace and drop out here
+    manifest.stamp(workspace, manifest.getPaths());
+    listener.getLogger().println("Workspace manifest lists " + manifest.size() + " file(s).");
+  }
+
+  private static boolean isRemoval(String action) {
+    action = action.toLowerCase(Locale.ENGLISH);
+    return action.contains("delete") || action.contains("remove") || action.contains("destroy");
+  }
+
+  /**
+   * Brings the workspace from the manifest's timestamp to the given one:
+   * removes what was deleted and fetches what changed on the server or in
+   * the workspace, with one get per directory that holds more than one such
+   * file.
+   *
+   * @return false if a full get is needed instead.
+   */
+  private boolean applyDelta(Launcher launcher, FilePath workspace, TaskListener listener,
+                             SurroundSCMWorkspaceManifest manifest, Date currentDate,
+                             SurroundSCMBuildMetrics metrics) throws IOException, InterruptedException {
+    SimpleDateFormat scm_datetime_formatter = new SimpleDateFormat(SURROUND_DATETIME_FORMAT_STR);
+    listener.getLogger().println("Updating workspace incrementally for date range: [ "
+                                 + scm_datetime_formatter.format(manifest.getTimestamp()) + ":"
+                                 + scm_datetime_formatter.format(currentDate) + " ]");
+
+    ByteArrayOutputStream changes = new ByteArrayOutputStream();
+    int cmdResult = runCommand(launcher, changesCommand(manifest.getTimestamp(), currentDate), changes, workspace,
+                               listener, metrics);
+    if (cmdResult != 0) {
+      listener.getLogger().println("Listing changes failed with exit code " + cmdResult);
+      return false;
+    }
+
+    // the latest change per file wins
+    SurroundSCMPathFilter filter = getPathFilter();
+    Map<String, String[]> delta = new LinkedHashMap<String, String[]>();
+    SurroundSCMChangeLogTokenizer tokenizer = new SurroundSCMChangeLogTokenizer(new ByteArrayInputStream(changes.toByteArray()));
+    while (tokenizer.next()) {
+      String[] fields = new String[SurroundSCMChangeLogParser.USER + 1];
+      for (int i = 0; i < fields.length; i++)
+        fields[i] = tokenizer.get(i);
+      String dir = toWorkspacePath(fields[SurroundSCMChangeLogParser.PATH]);
+      if (dir == null) {
+        listener.getLogger().println("Change outside of repository " + repository + ": " + fields[SurroundSCMChangeLogParser.PATH]);
+        return false;
+      }
+      if (!filter.accepts(fields[SurroundSCMChangeLogParser.PATH], fields[SurroundSCMChangeLogParser.NAME]))
+        continue;
+      String action = fields[SurroundSCMChangeLogParser.ACTION].toLowerCase(Locale.ENGLISH);
+      if (action.contains("rename") || action.contains("move")) {
+        listener.getLogger().println("Structural change (" + action + ") cannot be applied incrementally.");
+        return false;
+      }
+      String path = dir.length() == 0 ? fields[SurroundSCMChangeLogParser.NAME] : dir.concat("/").concat(fields[SurroundSCMChangeLogParser.NAME]);
+      delta.remove(path);
+      delta.put(path, fields);
+    }
+    if (tokenizer.getMalformedLines() > 0) {
+      listener.getLogger().println(tokenizer.getMalformedLines() + " change(s) could not be read.");
+      return false;
+    }
+
+    // what to fetch, by workspace directory
+    Map<String, Set<String>> fetch = new TreeMap<String, Set<String>>();
+    for (Map.Entry<String, String[]> e : delta.entrySet()) {
+      if (!isRemoval(e.getValue()[SurroundSCMChangeLogParser.ACTION]))
+        addToFetch(fetch, e.getKey());
+    }
+    List<String> local = manifest.findLocalChanges(workspace);
+    for (Iterator<String> i = local.iterator(); i.hasNext(); ) {
+      String[] change = delta.get(i.next());
+      if (change != null && isRemoval(change[SurroundSCMChangeLogParser.ACTION]))
+        i.remove();
+    }
+    if (!local.isEmpty()) {
+      listener.getLogger().println(local.size() + " file(s) were changed or removed in the workspace, fetching them again.");
+      for (String path : local)
+        addToFetch(fetch, path);
+    }
+    if (fetch.size() > MAX_INCREMENTAL_GETS) {
+      listener.getLogger().println("Files changed in " + fetch.size() + " directories, a full get is faster.");
+      return false;
+    }
+
+    for (Map.Entry<String, String[]> e : delta.entrySet()) {
+      if (!isRemoval(e.getValue()[SurroundSCMChangeLogParser.ACTION]))
+        continue;
+      listener.getLogger().println("Removing " + e.getKey());
+      try {
+        // a removed directory is deleted with everything in it
+        workspace.child(e.getKey()).deleteRecursive();
+      } catch (IOException x) {
+        listener.getLogger().println("Failed to remove " + e.getKey() + ": " + x.getMessage());
+        return false;
+      }
+      manifest.remove(e.getKey());
+    }
+
+    SimpleDateFormat get_datetime_formatter = new SimpleDateFormat(SURROUND_DATETIME_FORMAT_STR_2);
+    Set<String> fetchedDirs = new HashSet<String>();
+    for (Map.Entry<String, Set<String>> e : fetch.entrySet()) {
+      String dir = e.getKey();
+      Set<String> names = e.getValue();
+      FilePath target = dir.length() == 0 ? workspace : workspace.child(dir);
+      target.mkdirs();
+
+      ArgumentListBuilder cmd = new ArgumentListBuilder();
+      cmd.add(getExecutable());
+      cmd.add("get");
+      // several files of a directory come with one get of the directory
+      cmd.add(names.size() == 1 ? names.iterator().next() : "/");
+      cmd.add("-wreplace");
+      addConnectionArgs(cmd);
+      cmd.add("-b".concat(branch));
+      cmd.add("-p".concat(dir.length() == 0 ? repository : repository.concat("/").concat(dir)));
+      cmd.add("-d".concat(target.getRemote()));
+      cmd.add("-s" + get_datetime_formatter.format(currentDate));
+
+      cmdResult = runCommand(launcher, cmd, listener.getLogger(), workspace, listener, metrics);
+      if (cmdResult != 0) {
+        listener.getLogger().println("Fetching " + (names.size() == 1 ? names.iterator().next() : names.size() + " files")
+                                     + " in " + (dir.length() == 0 ? "/" : dir) + " failed with exit code " + cmdResult);
+        return false;
+      }
+      if (names.size() > 1)
+        fetchedDirs.add(dir);
+    }
+
+    Set<String> fetched = new HashSet<String>(local);
+    for (Map.Entry<String, String[]> e : delta.entrySet()) {
+      String[] fields = e.getValue();
+      if (isRemoval(fields[SurroundSCMChangeLogParser.ACTION]))
+        continue;
+      manifest.update(e.getKey(), fields[SurroundSCMChangeLogParser.VERSION], fields[SurroundSCMChangeLogParser.DATE]);
+      fetched.add(e.getKey());
+    }
+    // a directory get rewrites the other files of the directory as well
+    for (String path : manifest.getPaths()) {
+      int slash = path.lastIndexOf('/');
+      if (fetchedDirs.contains(slash < 0 ? "" : path.substring(0, slash)))
+        fetched.add(path);
+    }
+    manifest.stamp(workspace, fetched);
+
+    listener.getLogger().println("Workspace updated incrementally, " + delta.size() + " file(s) changed, "
+                                 + fetch.size() + " get(s).");
+    return true;
+  }
+
+  private static void addToFetch(Map<String, Set<String>> fetch, String path) {
+    int slash = path.lastIndexOf('/');
+    String dir = slash < 0 ? "" : path.substring(0, slash);
+    Set<String> names = fetch.get(dir);
+    if (names == null) {
+      names = new TreeSet<String>();
+      fetch.put(dir, names);
+    }
+    names.add(path.substring(slash + 1));
+  }
+
+  /**
+   * Maps a repository path reported by <tt>sscm cc</tt> to a path relative to
+   * the workspace root.
+   *
+   * @return the relative path ("" for the root), or null if the path is not
+   *         below the configured repository.
+   */
+  private String toWorkspacePath(String repositoryPath) {
+    if (repositoryPath.equals(repository))
+      return "";
+    if (repositoryPath.startsWith(repository.concat("/")))
+      return repositoryPath.substring(repository.length() + 1);
+    return null;
+  }
+
+  /**
+   * Picks where workspace-less polls run: the configured node if it is
+   * online, the controller otherwise.
+   */
+  private Launcher createPollingLauncher(TaskListener listener) {
+    Hudson hudson = Hudson.getInstance();
+    if (pollingNode != null && pollingNode.trim().length() > 0) {
+      Node node = hudson.getNode(pollingNode.trim());
+      Computer computer = node == null ? null : node.toComputer();
+      if (computer != null && computer.isOnline())
+        return node.createLauncher(listener);
+      listener.getLogger().println("Polling node " + pollingNode + " is not available, polling on the master.");
+    }
+    return hudson.createLauncher(listener);
+  }
+
+  /**
+   * Runs sscm once a slot for the server is free, recording how the call went
+   * with the server's metrics and, during a checkout, the build's.
+   *
+   * @param metrics the build's metrics, null when polling.
+   */
+  private int runCommand(Launcher launcher, ArgumentListBuilder cmd, OutputStream out, FilePath pwd,
+                         TaskListener listener, SurroundSCMBuildMetrics metrics) throws IOException, InterruptedException {
+    String serverKey = getServerKey();
+    SurroundSCMScheduler scheduler = DESCRIPTOR.getScheduler();
+    long queueWait = scheduler.acquire(serverKey, DESCRIPTOR.getMaxConcurrentCalls(), DESCRIPTOR.getMaxQueueWait() * 1000L, listener);
+    boolean serverFailed = false;
+    int cmdResult = -1;
+    SurroundSCMRetry.TailOutputStream tail = new SurroundSCMRetry.TailOutputStream(out);
+    CountingOutputStream counter = new CountingOutputStream(tail);
+    long started = System.currentTimeMillis();
+    try {
+      Launcher.ProcStarter starter = launcher.launch().cmds(cmd).envs(new String[0]).stdin(null).stdout(counter);
+      if (pwd != null)
+        starter.pwd(pwd);
+      Proc proc = starter.start();
+      if (out instanceof HeadOutputStream)
+        ((HeadOutputStream) out).attach(proc);
+      cmdResult = SurroundSCMWatchdog.join(proc, commandOf(cmd), DESCRIPTOR.getTimeout(commandOf(cmd)));
+      if (out instanceof HeadOutputStream && ((HeadOutputStream) out).isStopped())
+        cmdResult = 0; // killed on purpose once the output was no longer needed
+      // a bad password or a missing branch is the job's problem, not the server's
+      serverFailed = cmdResult != 0 && SurroundSCMRetry.isServerFailure(tail.getTail());
+      return cmdResult;
+    } catch (SurroundSCMTimeoutException e) {
+      scheduler.timedOut(serverKey);
+      serverFailed = true;
+      throw e;
+    } finally {
+      scheduler.release(serverKey, serverFailed);
+      recordInvocation(cmd, serverKey, started, queueWait, cmdResult, counter.getBytes(), counter.getLines(),
+                       listener, metrics);
+    }
+  }
+
+  private void recordInvocation(ArgumentListBuilder cmd, String serverKey, long started, long queueWait, int cmdResult,
+                                long bytes, long lines, TaskListener listener, SurroundSCMBuildMetrics metrics) {
+    SurroundSCMMetrics.Invocation invocation = new SurroundSCMMetrics.Invocation(commandOf(cmd),
+          serverKey, started, queueWait, System.currentTimeMillis() - started, cmdResult, bytes, lines);
+    DESCRIPTOR.getMetrics().record(invocation);
+    if (metrics != null)
+      metrics.add(invocation);
+    listener.getLogger().println(invocation);
+  }
+
+  /**
+   * The sscm sub command of a command line.
+   */
+  private static String commandOf(ArgumentListBuilder cmd) {
+    List<String> args = cmd.toList();
+    return args.size() > 1 ? args.get(1) : "?";
+  }
+
+  /**
+   * Captures the changelog on the node holding the workspace, which also
+   * indexes it and, if enabled, compacts it, and stores the result. Takes a slot for the
+   * server like {@link #runCommand}.
+   */
+  private boolean captureChangeLogOnNode(FilePath workspace, BuildListener listener, ArgumentListBuilder cmd,
+                                         File changelogFile, SurroundSCMBuildMetrics metrics) throws IOException, InterruptedException {
+    String serverKey = getServerKey();
+    SurroundSCMScheduler scheduler = DESCRIPTOR.getScheduler();
+    long queueWait = scheduler.acquire(serverKey, DESCRIPTOR.getMaxConcurrentCalls(), DESCRIPTOR.getMaxQueueWait() * 1000L, listener);
+    SurroundSCMRemoteChangeLog.Result result = null;
+    boolean serverFailed = false;
+    long started = System.currentTimeMillis();
+    try {
+      result = workspace.act(new SurroundSCMRemoteChangeLog(cmd, listener, DESCRIPTOR.getChangeSetWindow() * 1000L,
+                                                             DESCRIPTOR.getChangesTimeout(),
+                                                             DESCRIPTOR.isCompactChangeLog()));
+      serverFailed = result.exitCode != 0 && SurroundSCMRetry.isServerFailure(result.tail);
+    } catch (SurroundSCMTimeoutException e) {
+      scheduler.timedOut(serverKey);
+      serverFailed = true;
+      throw e;
+    } finally {
+      scheduler.release(serverKey, serverFailed);
+      recordInvocation(cmd, serverKey, started, queueWait, result == null ? -1 : result.exitCode,
+                       result == null ? 0 : result.bytes, result == null ? 0 : result.lines, listener, metrics);
+    }
+
+    if (result.exitCode != 0) {
+      listener.fatalError("Changelog failed with exit code " + result.exitCode);
+      return false;
+    }
+    SurroundSCMRemoteChangeLog.install(result, changelogFile);
+    listener.getLogger().println("Changelog calculated on the node: " + result.changesets + " changeset(s), "
+                                 + result.changelog.length + " of " + result.bytes + " bytes transferred.");
+    listener.getLogger().println("Change log file: " + changelogFile.getAbsolutePath() );
+    return true;
+  }
+
+  /**
+   * The server sscm connects to, as given by the RSA key file or the server
+   * name and port.
+   */
+  String getServerKey() {
+    SurroundSCMServerProfile connection = getConnection();
+    if (connection.getRsaKeyPath() != null && !connection.getRsaKeyPath().isEmpty())
+      return connection.getRsaKeyPath();
+    return connection.getServer() + ":" + connection.getServerPort();
+  }
+
+  private void addConnectionArgs(ArgumentListBuilder cmd) {
+    SurroundSCMServerProfile connection = getConnection();
+    cmd.addMasked("-y".concat(connection.getUserName()).concat(":").concat(connection.getPassword()));
+    if(connection.getRsaKeyPath() != null && !connection.getRsaKeyPath().isEmpty()) {
+      cmd.add("-z".concat(connection.getRsaKeyPath()));
+    }
+    else {
+      cmd.add("-z".concat(connection.getServer()).concat(":").concat(connection.getServerPort()));
+    }
+  }
+
+  @Override
+  public ChangeLogParser createChangeLogParser() {
+    return new SurroundSCMChangeLogParser();
+  }
+
+  private boolean writeChangeLog(byte[] changes, BuildListener listener, File changelogFile) throws IOException {
+    FileOutputStream os = new FileOutputStream(changelogFile);
+    try {
+      os.write(changes);
+    } finally {
+      os.close();
+    }
+
+    listener.getLogger().println("Changelog taken from polling.");
+    listener.getLogger().println("Change log file: " + changelogFile.getAbsolutePath() );
+    return true;
+  }
+
+  /**
+   * Starts {@link #captureChangeLog} on a pooled thread.
+   */
+  private Future<Boolean> captureChangeLogAsync(final Launcher launcher, final FilePath workspace,
+                                                final BuildListener listener, final Date lastBuildDate, final Date currentDate,
+                                                final File changelogFile, final SurroundSCMBuildMetrics metrics) {
+    return Computer.threadPoolForRemoting.submit(new Callable<Boolean>() {
+      public Boolean call() throws IOException, InterruptedException {
+        return captureChangeLog(launcher, workspace, listener, lastBuildDate, currentDate, changelogFile, metrics);
+      }
+    });
+  }
+
+  /**
+   * Waits for a task started on a pooled thread, passing on what it threw.
+   */
+  private static <T> T await(Future<T> task) throws IOException, InterruptedException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      task.cancel(true);
+      throw e;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof InterruptedException)
+        throw (InterruptedException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IOException("sscm failed", cause);
+    }
+  }
+
+  private boolean captureChangeLog(Launcher launcher, FilePath workspace,
+                                   BuildListener listener, Date lastBuildDate, Date currentDate, File changelogFile,
+                                   SurroundSCMBuildMetrics metrics) throws IOException, InterruptedException {
 
     boolean result = true;
 
@@ -316,21 +1942,19 @@ public final class SurroundSCM extends SCM {
     dateRange = dateRange.concat(scm_datetime_formatter.format(currentDate));
 
     ArgumentListBuilder cmd = new ArgumentListBuilder();
-    cmd.add(getSurroundSCMExecutable());//will default to sscm user can put in path
+    cmd.add(getExecutable());//will default to sscm user can put in path
     cmd.add("cc");
     cmd.add("/");
     cmd.add("-d".concat(dateRange));
-    cmd.addMasked("-y".concat(userName).concat(":").concat(password));
-    if(rsaKeyPath != null && !rsaKeyPath.isEmpty()) {
-      cmd.add("-z".concat(rsaKeyPath));
-    }
-    else {
-      cmd.add("-z".concat(server).concat(":").concat(serverPort));
-    }
+    addConnectionArgs(cmd);
     cmd.add("-b".concat(branch));
     cmd.add("-p".concat(repository));
     cmd.add("-r");
 
+    // parse where the output is produced rather than on the master
+    if (workspace != null && workspace.isRemote())
+      return captureChangeLogOnNode(workspace, listener, cmd, changelogFile, metrics);
+
     FileOutputStream os = new FileOutputStream(changelogFile);
     try {
       BufferedOutputStream bos = new BufferedOutputStream(os);
@@ -338,7 +1962,7 @@ public final class SurroundSCM extends SCM {
       try {
 
 
-        int cmdResult = launcher.launch().cmds(cmd).envs(new String[0]).stdin(null).stdout(bos).pwd(workspace).join();
+        int cmdResult = runCommand(launcher, cmd, bos, workspace, listener, metrics);
         if (cmdResult != 0)
         {
           listener.fatalError("Changelog failed with exit code " + cmdResult);
@@ -360,79 +1984,276 @@ public final class SurroundSCM extends SCM {
     return result;
   }
 
-  private double determineChangeCount(Launcher launcher, FilePath workspace,
-                                      TaskListener listener, Date lastBuildDate, Date currentDate, File changelogFile) throws IOException, InterruptedException {
+  /**
+   * Lists the changes in the given date range.
+   *
+   * @param keepOutput whether the changes themselves are needed; otherwise
+   *        sscm is stopped as soon as it has printed their count.
+   * @return the changes, or null if sscm failed.
+   */
+  SurroundSCMPollingService.Snapshot queryChanges(Launcher launcher, FilePath workspace, TaskListener listener,
+                                                  Date lastBuildDate, Date currentDate, boolean keepOutput)
+        throws IOException, InterruptedException {
+    return queryChanges(launcher, workspace, listener, branch, repository, lastBuildDate, currentDate, keepOutput);
+  }
+
+  /**
+   * Like {@link #queryChanges(Launcher, FilePath, TaskListener, Date, Date, boolean)}
+   * for another branch and repository on the job's server.
+   */
+  SurroundSCMPollingService.Snapshot queryChanges(Launcher launcher, FilePath workspace, TaskListener listener,
+                                                  String branch, String repository,
+                                                  Date lastBuildDate, Date currentDate, boolean keepOutput)
+        throws IOException, InterruptedException {
 
     SimpleDateFormat scm_datetime_formatter = new SimpleDateFormat(SURROUND_DATETIME_FORMAT_STR);
 
-    double changesCount = 0;
-    if (server != null )
-      listener.getLogger().println("in determine Change Count server: "+server);
+    String connectedServer = getConnection().getServer();
+    if (connectedServer != null )
+      listener.getLogger().println("in determine Change Count server: "+connectedServer);
 
     String dateRange = scm_datetime_formatter.format(lastBuildDate);
     dateRange = dateRange.concat(":");
     dateRange = dateRange.concat(scm_datetime_formatter.format(currentDate));
 
     ArgumentListBuilder cmd = new ArgumentListBuilder();
-    cmd.add(getSurroundSCMExecutable());
+    cmd.add(getExecutable());
     cmd.add("cc");
     cmd.add("/");
     cmd.add("-d".concat(dateRange));
-    cmd.addMasked("-y".concat(userName).concat(":").concat(password));
-    if(rsaKeyPath != null && !rsaKeyPath.isEmpty()) {
-      cmd.add("-z".concat(rsaKeyPath));
-    }
-    else {
-      cmd.add("-z".concat(server).concat(":").concat(serverPort));
-    }
+    addConnectionArgs(cmd);
     cmd.add("-b".concat(branch));
     cmd.add("-p".concat(repository));
     cmd.add("-r");
 
     listener.getLogger().println("determineChangeCount executing the command: " + cmd.toString() + " with date range: [ " + dateRange + " ]");
 
-    FileOutputStream os = new FileOutputStream(changelogFile);
-    try {
-      BufferedOutputStream bos = new BufferedOutputStream(os);
+    HeadOutputStream os = new HeadOutputStream(keepOutput ? SurroundSCMChangeCache.MAX_OUTPUT_BYTES : 0);
+    int cmdResult = runCommand(launcher, cmd, os, workspace, listener, null);
+    if (cmdResult != 0)
+    {
+      listener.fatalError("Determine changes count failed with exit code " + cmdResult);
+      return null;
+    }
+    if (os.isTruncated() && !os.isFirstLineComplete()) {
+      listener.fatalError("Determine changes count failed: the output did not start with a count line");
+      return null;
+    }
 
+    int changesCount = 0;
+    String line = os.getFirstLine();
+    if (line != null){
+      listener.getLogger().println(line);
+      if (!line.startsWith("total-")) {
+        listener.fatalError("Determine changes count failed: expected total-N, got: " + line);
+        return null;
+      }
       try {
-        int cmdResult = launcher.launch().cmds(cmd).envs(new String[0]).stdin(null).stdout(bos).pwd(workspace).join();
-        if (cmdResult != 0)
-        {
-          listener.fatalError("Determine changes count failed with exit code " + cmdResult);
-        }
-      } finally {
-        bos.close();
+        changesCount = Integer.parseInt(line.substring("total-".length()).trim());
+      } catch (NumberFormatException nfe) {
+        listener.fatalError("Determine changes count failed: expected total-N, got: " + line);
+        return null;
       }
-    } finally {
-      os.close();
     }
+    return new SurroundSCMPollingService.Snapshot(lastBuildDate, currentDate, changesCount,
+                                                  keepOutput && !os.isTruncated() ? os.toByteArray() : null);
+  }
 
-    BufferedReader br = null;
-    String line = null;
-    try{
-      br = new BufferedReader(new FileReader(changelogFile));
-      line = br.readLine();
-      if (line != null){
-        listener.getLogger().println(line);
-        String num = line.substring(6);
-        try {
-          changesCount = Double.valueOf(num.trim());
-        } catch (NumberFormatException nfe) {
-          listener.fatalError("NumberFormatException: " + nfe.getMessage());
+  /**
+   * Collects the top-level directories below the repository that the lines
+   * of <tt>sscm cc</tt> output are in, without keeping the output.
+   */
+  static final class SubtreeCollector extends OutputStream {
+    private final String repository;
+    private final Set<String> subtrees = new TreeSet<String>();
+    private final ByteArrayOutputStream path = new ByteArrayOutputStream();
+    // 0 at the start of a line, 1 within its path, 2 past it
+    private int state;
+
+    SubtreeCollector(String repository) {
+      this.repository = repository;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+      if (b == '\n') {
+        state = 0;
+        path.reset();
+      } else if (state == 0) {
+        state = b == '<' ? 1 : 2; // the total line has no path
+      } else if (state == 1) {
+        if (b == '>') {
+          add(path.toString());
+          state = 2;
+        } else {
+          path.write(b);
         }
       }
+    }
 
-    } catch (FileNotFoundException e) {
-      e.printStackTrace();
-    } finally {
-      if(br != null)
-      {
-        br.close();
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      for (int i = off; i < off + len; i++)
+        write(b[i]);
+    }
+
+    synchronized Set<String> getSubtrees() {
+      return new TreeSet<String>(subtrees);
+    }
+
+    private void add(String repositoryPath) {
+      if (!repositoryPath.startsWith(repository.concat("/")))
+        return;
+      String dir = repositoryPath.substring(repository.length() + 1);
+      int slash = dir.indexOf('/');
+      subtrees.add(slash < 0 ? dir : dir.substring(0, slash));
+    }
+  }
+
+  /**
+   * Counts the bytes and lines passing through to another stream.
+   */
+  static final class CountingOutputStream extends FilterOutputStream {
+    private long bytes;
+    private long lines;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+      out.write(b);
+      bytes++;
+      if (b == '\n')
+        lines++;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      bytes += len;
+      for (int i = off; i < off + len; i++) {
+        if (b[i] == '\n')
+          lines++;
       }
     }
-    listener.getLogger().println("Number of changes determined to be: "+changesCount);
-    return changesCount;
+
+    synchronized long getBytes() {
+      return bytes;
+    }
+
+    synchronized long getLines() {
+      return lines;
+    }
   }
 
+  /**
+   * Keeps the output of a command up to a limit, and its first line in any
+   * case unless the limit is exceeded before the line ends. With a limit of
+   * 0 only the first line is kept. Once the limit is exceeded the rest of
+   * the output is of no use, so the process is stopped instead of being read
+   * to the end.
+   */
+  private static final class HeadOutputStream extends ByteArrayOutputStream {
+    // a count line is far shorter; anything longer is not one
+    private static final int MAX_FIRST_LINE = 1024;
+
+    private final int limit;
+    private final ByteArrayOutputStream firstLine = new ByteArrayOutputStream();
+    private boolean firstLineDone;
+    private boolean truncated;
+    private boolean stopped;
+    private Proc proc;
+
+    HeadOutputStream(int limit) {
+      super(Math.min(limit, 32));
+      this.limit = limit;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      if (truncated)
+        return;
+      for (int i = off; !firstLineDone && i < off + len; i++) {
+        if (b[i] == '\n') {
+          firstLineDone = true;
+        } else if (firstLine.size() < MAX_FIRST_LINE) {
+          firstLine.write(b[i]);
+        } else {
+          truncate();
+          return;
+        }
+      }
+      if (count + len > limit) {
+        // with only the first line to keep, wait for all of it, and let sscm
+        // finish if it is an error rather than a count so its exit code is seen
+        if (limit > 0 || (firstLineDone && firstLine.toString().startsWith("total-")))
+          truncate();
+        return;
+      }
+      super.write(b, off, len);
+    }
+
+    private void truncate() {
+      truncated = true;
+      buf = new byte[0];
+      count = 0;
+      stop();
+    }
+
+    /**
+     * Lets the stream stop the process writing to it.
+     */
+    synchronized void attach(Proc proc) {
+      this.proc = proc;
+      if (truncated)
+        stop();
+    }
+
+    private void stop() {
+      if (stopped || proc == null)
+        return;
+      stopped = true;
+      final Proc p = proc;
+      // not from the thread delivering the output, which may be a remoting thread
+      Computer.threadPoolForRemoting.submit(new Runnable() {
+        public void run() {
+          try {
+            p.kill();
+          } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to stop sscm", e);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+    }
+
+    synchronized boolean isTruncated() {
+      return truncated;
+    }
+
+    synchronized boolean isStopped() {
+      return stopped;
+    }
+
+    synchronized boolean isFirstLineComplete() {
+      return firstLineDone;
+    }
+
+    synchronized String getFirstLine() {
+      if (firstLine.size() == 0 && !firstLineDone)
+        return null;
+      return firstLine.toString().trim();
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(SurroundSCM.class.getName());
+
 }
@@ -0,0 +1,67 @@
+package hudson.scm;
+
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * The sscm calls a build's checkout made, shown on the build and exported
+ * through its remote API.
+ */
+@ExportedBean
+public final class SurroundSCMBuildMetrics implements Action {
+
+  private final List<SurroundSCMMetrics.Invocation> invocations = new ArrayList<SurroundSCMMetrics.Invocation>();
+
+  public String getIconFileName() {
+    return "clock.gif";
+  }
+
+  public String getDisplayName() {
+    return "Surround SCM Calls";
+  }
+
+  public String getUrlName() {
+    return "sscmCalls";
+  }
+
+  @Exported(inline = true)
+  public synchronized List<SurroundSCMMetrics.Invocation> getInvocations() {
+    return new ArrayList<SurroundSCMMetrics.Invocation>(invocations);
+  }
+
+  /**
+   * Total time spent in sscm, not counting queue waits.
+   */
+  @Exported
+  public synchronized long getWallMillis() {
+    long sum = 0;
+    for (SurroundSCMMetrics.Invocation i : invocations)
+      sum += i.getWallMillis();
+    return sum;
+  }
+
+  @Exported
+  public synchronized long getQueueWaitMillis() {
+    long sum = 0;
+    for (SurroundSCMMetrics.Invocation i : invocations)
+      sum += i.getQueueWaitMillis();
+    return sum;
+  }
+
+  @Exported
+  public synchronized long getBytes() {
+    long sum = 0;
+    for (SurroundSCMMetrics.Invocation i : invocations)
+      sum += i.getBytes();
+    return sum;
+  }
+
+  synchronized void add(SurroundSCMMetrics.Invocation invocation) {
+    invocations.add(invocation);
+  }
+}
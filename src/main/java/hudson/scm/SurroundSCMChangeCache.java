@@ -0,0 +1,112 @@
+package hudson.scm;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the raw <tt>sscm cc</tt> output of the most recent poll of each job so
+ * the checkout it triggers can reuse it instead of asking the server again.
+ * The cache is bounded both in the total size of the outputs it holds and in
+ * the size of a single output, dropping the least recently used jobs first,
+ * and entries expire so a build that waited long in the queue still gets a
+ * fresh snapshot.
+ */
+public final class SurroundSCMChangeCache {
+
+  static final int MAX_OUTPUT_BYTES = 4 * 1024 * 1024;
+  static final long MAX_TOTAL_BYTES = 32 * 1024 * 1024L;
+  static final long MAX_AGE_MILLIS = 10 * 60 * 1000L;
+
+  /**
+   * The result of one change query: everything that changed in
+   * (<tt>from</tt>, <tt>to</tt>].
+   */
+  public static final class Changes {
+    private final String source;
+    private final Date from;
+    private final Date to;
+    private final byte[] output;
+    private final long created;
+
+    Changes(String source, Date from, Date to, byte[] output) {
+      this.source = source;
+      this.from = new Date(from.getTime());
+      this.to = new Date(to.getTime());
+      this.output = output;
+      this.created = System.currentTimeMillis();
+    }
+
+    public Date getFrom() {
+      return new Date(from.getTime());
+    }
+
+    public Date getTo() {
+      return new Date(to.getTime());
+    }
+
+    public byte[] getOutput() {
+      return output;
+    }
+
+    boolean isExpired() {
+      return System.currentTimeMillis() - created > MAX_AGE_MILLIS;
+    }
+  }
+
+  // least recently used first
+  private final Map<String, Changes> changes = new LinkedHashMap<String, Changes>(16, 0.75f, true);
+  private long totalBytes;
+
+  /**
+   * Remembers the output of a poll of the given job's source, as identified
+   * by {@link SurroundSCMPollingService#keyOf}, replacing any earlier one. Outputs larger than {@link #MAX_OUTPUT_BYTES} are not kept. Expired
+   * entries are dropped, and then the least recently used ones until the
+   * outputs fit into {@link #MAX_TOTAL_BYTES}.
+   */
+  public synchronized void put(String job, String source, Date from, Date to, byte[] output) {
+    remove(job);
+    if (output.length > MAX_OUTPUT_BYTES)
+      return;
+    changes.put(job, new Changes(source, from, to, output));
+    totalBytes += output.length;
+
+    for (Iterator<Changes> it = changes.values().iterator(); it.hasNext();) {
+      Changes c = it.next();
+      if (c.isExpired() || totalBytes > MAX_TOTAL_BYTES) {
+        it.remove();
+        totalBytes -= c.output.length;
+      }
+    }
+  }
+
+  /**
+   * Total size of the outputs held.
+   */
+  synchronized long getTotalBytes() {
+    return totalBytes;
+  }
+
+  private Changes remove(String job) {
+    Changes c = changes.remove(job);
+    if (c != null)
+      totalBytes -= c.output.length;
+    return c;
+  }
+
+  /**
+   * Hands out the cached poll of the given job if it is of the same source,
+   * so a job whose credentials changed since does not build from what
+   * another login listed, and starts exactly at <tt>from</tt>. The entry is consumed either way, so it is used by at most
+   * one checkout.
+   *
+   * @return the cached changes, or null if there are none usable.
+   */
+  public synchronized Changes take(String job, String source, Date from) {
+    Changes c = remove(job);
+    if (c == null || c.isExpired() || !c.source.equals(source) || c.from.getTime() != from.getTime())
+      return null;
+    return c;
+  }
+}
@@ -0,0 +1,436 @@
+package hudson.scm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.text.DateFormat;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Offsets of the entries of a changelog file, kept in a <tt>.idx</tt> file
+ * next to it so a change set can tell its size and load any entry without
+ * reading the changelog. The index is rebuilt whenever it does not match the
+ * changelog it was made for, into a temporary file that then replaces the
+ * old index, so a concurrent reader sees either of them but never half of one.
+ * <p>
+ * sscm reports one line per file revision. Lines by the same user with the
+ * same comment and timestamps no further apart than the grouping window are
+ * indexed as one changeset, which becomes one change set entry.
+ * <p>
+ * Layout: magic, format version, changelog length, changelog timestamp,
+ * grouping window, changeset count, malformed line count, then one long
+ * position per changeset pointing at its record (a line count followed by
+ * the offsets of its lines).
+ */
+final class SurroundSCMChangeLogIndex {
+
+  private static final int MAGIC = 0x53534349; // "SSCI"
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 4 + 4;
+
+  private final File indexFile;
+  private final int size;
+  private final int malformedLines;
+  // only set when the index could not be written to disk
+  private final long[][] changesets;
+
+  private SurroundSCMChangeLogIndex(File indexFile, int size, int malformedLines, long[][] changesets) {
+    this.indexFile = indexFile;
+    this.size = size;
+    this.malformedLines = malformedLines;
+    this.changesets = changesets;
+  }
+
+  static File indexFileFor(File changelogFile) {
+    return new File(changelogFile.getPath() + ".idx");
+  }
+
+  /**
+   * Opens the index of the given changelog, building it first if it is
+   * missing, stale or was grouped with a different window.
+   *
+   * @param windowMillis how far apart the revisions of one changeset may be.
+   */
+  static SurroundSCMChangeLogIndex open(File changelogFile, long windowMillis) throws IOException {
+    if (!changelogFile.exists())
+      return new SurroundSCMChangeLogIndex(null, 0, 0, new long[0][]);
+
+    File indexFile = indexFileFor(changelogFile);
+    SurroundSCMChangeLogIndex index = read(changelogFile, indexFile, windowMillis);
+    if (index == null)
+      index = build(changelogFile, indexFile, windowMillis);
+    return index;
+  }
+
+  /**
+   * Stores an index built elsewhere, e.g. on the node the changelog was
+   * captured on, for a copy of the changelog it was built for. The index is
+   * only installed if it matches the length of the changelog.
+   */
+  static void install(File changelogFile, byte[] index) throws IOException {
+    if (index.length < HEADER_SIZE)
+      return;
+    ByteBuffer header = ByteBuffer.wrap(index);
+    if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getLong(8) != changelogFile.length())
+      return;
+    // the copy was written at a different time
+    header.putLong(16, changelogFile.lastModified());
+
+    File indexFile = indexFileFor(changelogFile);
+    File tmp = tempFileFor(indexFile);
+    try {
+      FileOutputStream out = new FileOutputStream(tmp);
+      try {
+        out.write(index);
+      } finally {
+        out.close();
+      }
+      replace(tmp, indexFile);
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * A new file next to the index to write it to, so readers never see a
+   * partly written index.
+   */
+  private static File tempFileFor(File indexFile) throws IOException {
+    return File.createTempFile(indexFile.getName(), ".tmp", indexFile.getAbsoluteFile().getParentFile());
+  }
+
+  /**
+   * Moves a completely written index over the current one in one step.
+   */
+  private static void replace(File tmp, File indexFile) throws IOException {
+    if (tmp.renameTo(indexFile))
+      return;
+    // Windows does not rename over an existing file
+    indexFile.delete();
+    if (!tmp.renameTo(indexFile))
+      throw new IOException("Failed to rename " + tmp + " to " + indexFile);
+  }
+
+  /**
+   * Number of changesets.
+   */
+  int size() {
+    return size;
+  }
+
+  int getMalformedLines() {
+    return malformedLines;
+  }
+
+  /**
+   * Positions in the changelog file of the lines of the changesets
+   * <tt>first</tt> to <tt>first + count - 1</tt>, read with a single seek
+   * since their records are stored next to each other.
+   */
+  long[][] getOffsets(int first, int count) throws IOException {
+    if (first < 0 || count < 0 || first + count > size)
+      throw new IndexOutOfBoundsException(first + "+" + count);
+    long[][] result = new long[count][];
+    if (changesets != null) {
+      System.arraycopy(changesets, first, result, 0, count);
+      return result;
+    }
+    if (count == 0)
+      return result;
+
+    RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+    try {
+      raf.seek(HEADER_SIZE + 8L * first);
+      long start = raf.readLong();
+      long end = first + count < size ? readLongAt(raf, HEADER_SIZE + 8L * (first + count)) : raf.length();
+
+      byte[] records = new byte[(int) (end - start)];
+      raf.seek(start);
+      raf.readFully(records);
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(records));
+      for (int i = 0; i < count; i++) {
+        long[] offsets = new long[in.readInt()];
+        for (int n = 0; n < offsets.length; n++)
+          offsets[n] = in.readLong();
+        result[i] = offsets;
+      }
+      return result;
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static long readLongAt(RandomAccessFile raf, long position) throws IOException {
+    raf.seek(position);
+    return raf.readLong();
+  }
+
+  private static SurroundSCMChangeLogIndex read(File changelogFile, File indexFile, long windowMillis) throws IOException {
+    if (!indexFile.exists() || indexFile.length() < HEADER_SIZE)
+      return null;
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), HEADER_SIZE));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION)
+        return null;
+      if (in.readLong() != changelogFile.length() || in.readLong() != changelogFile.lastModified())
+        return null;
+      if (in.readLong() != windowMillis)
+        return null;
+      int size = in.readInt();
+      int malformed = in.readInt();
+      return new SurroundSCMChangeLogIndex(indexFile, size, malformed, null);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static SurroundSCMChangeLogIndex build(File changelogFile, File indexFile, long windowMillis) throws IOException {
+    List<Changeset> changesets = new ArrayList<Changeset>();
+    Map<Author, Changeset> byAuthor = new HashMap<Author, Changeset>();
+    DateParser dates = new DateParser();
+
+    SurroundSCMChangeLogReader tokenizer = SurroundSCMChangeLogParser.openReader(changelogFile, true);
+    try {
+      Changeset previous = null;
+      String previousUser = null;
+      String previousComment = null;
+      while (tokenizer.next()) {
+        String user = tokenizer.get(SurroundSCMChangeLogParser.USER);
+        String comment = tokenizer.get(SurroundSCMChangeLogParser.COMMENT);
+        String date = tokenizer.get(SurroundSCMChangeLogParser.DATE);
+        long time = dates.parse(date);
+
+        // the revisions of a changeset are usually listed together, and the
+        // tokenizer hands out the same String instances for repeated values
+        if (user == previousUser && comment == previousComment && previous.accepts(date, time, windowMillis)) {
+          previous.add(tokenizer.getOffset(), time);
+          continue;
+        }
+
+        Author key = new Author(user, comment);
+        Changeset first = byAuthor.get(key);
+        Changeset changeset = first;
+        while (changeset != null && !changeset.accepts(date, time, windowMillis))
+          changeset = changeset.sameAuthor;
+        if (changeset == null) {
+          changeset = new Changeset(date, time);
+          changeset.sameAuthor = first;
+          byAuthor.put(key, changeset);
+          changesets.add(changeset);
+        }
+        changeset.add(tokenizer.getOffset(), time);
+        previous = changeset;
+        previousUser = user;
+        previousComment = comment;
+      }
+    } finally {
+      tokenizer.close();
+    }
+
+    int malformed = tokenizer.getMalformedLines();
+    if (malformed > 0)
+      LOGGER.log(Level.WARNING, "Skipped {0} malformed line(s) in Surround SCM changelog {1}",
+                 new Object[] { malformed, changelogFile });
+
+    int size = changesets.size();
+    File tmp = null;
+    try {
+      tmp = tempFileFor(indexFile);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(changelogFile.length());
+        out.writeLong(changelogFile.lastModified());
+        out.writeLong(windowMillis);
+        out.writeInt(size);
+        out.writeInt(malformed);
+        long record = HEADER_SIZE + 8L * size;
+        for (Changeset c : changesets) {
+          out.writeLong(record);
+          record += 4 + 8L * c.count;
+        }
+        for (Changeset c : changesets) {
+          out.writeInt(c.count);
+          for (int n = 0; n < c.count; n++)
+            out.writeLong(c.offsets[n]);
+        }
+      } finally {
+        out.close();
+      }
+      replace(tmp, indexFile);
+      return new SurroundSCMChangeLogIndex(indexFile, size, malformed, null);
+    } catch (IOException e) {
+      // e.g. a read-only build directory; keep the offsets in memory instead
+      LOGGER.log(Level.WARNING, "Failed to write changelog index " + indexFile, e);
+      if (tmp != null)
+        tmp.delete();
+      long[][] offsets = new long[size][];
+      for (int i = 0; i < size; i++)
+        offsets[i] = changesets.get(i).trimmed();
+      return new SurroundSCMChangeLogIndex(null, size, malformed, offsets);
+    }
+  }
+
+  /**
+   * The user and comment changesets are grouped by. The tokenizer mostly hands
+   * out the same instances for equal values, which spares comparing the
+   * characters of long comments, and String caches its hash.
+   */
+  private static final class Author {
+    private final String user;
+    private final String comment;
+
+    Author(String user, String comment) {
+      this.user = user;
+      this.comment = comment;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * user.hashCode() + comment.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Author))
+        return false;
+      Author other = (Author) o;
+      return user.equals(other.user) && comment.equals(other.comment);
+    }
+  }
+
+  /**
+   * A changeset being assembled while the changelog is indexed.
+   */
+  private static final class Changeset {
+    private final String date;
+    private long first;
+    private long last;
+    private long[] offsets = new long[4];
+    private int count;
+    // the previous changeset with the same user and comment
+    private Changeset sameAuthor;
+
+    Changeset(String date, long time) {
+      this.date = date;
+      this.first = time;
+      this.last = time;
+    }
+
+    /**
+     * Whether a revision made at the given time belongs to this changeset.
+     * Revisions whose date could not be parsed only group on an exact match.
+     */
+    boolean accepts(String date, long time, long windowMillis) {
+      if (time < 0 || first < 0)
+        return date.equals(this.date);
+      return time >= first - windowMillis && time <= last + windowMillis;
+    }
+
+    void add(long offset, long time) {
+      if (count == offsets.length) {
+        long[] bigger = new long[offsets.length * 2];
+        System.arraycopy(offsets, 0, bigger, 0, count);
+        offsets = bigger;
+      }
+      offsets[count++] = offset;
+      if (time >= 0) {
+        first = Math.min(first, time);
+        last = Math.max(last, time);
+      }
+    }
+
+    long[] trimmed() {
+      long[] trimmed = new long[count];
+      System.arraycopy(offsets, 0, trimmed, 0, count);
+      return trimmed;
+    }
+  }
+
+  /**
+   * Parses the revision dates printed by sscm, remembering the last one since
+   * the revisions of a changeset usually share it.
+   */
+  static final class DateParser {
+    private final DateFormat[] formats = {
+      new SimpleDateFormat(SurroundSCM.SURROUND_DATETIME_FORMAT_STR),
+      new SimpleDateFormat(SurroundSCM.SURROUND_DATETIME_FORMAT_STR_2),
+      DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.MEDIUM),
+      DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT),
+    };
+    private final Calendar calendar = Calendar.getInstance();
+    private int lastHour = -1;
+    private long lastHourTime;
+    private String lastDate;
+    private long lastTime;
+
+    /**
+     * @return the time in milliseconds, or -1 if the date is not understood.
+     */
+    long parse(String date) {
+      if (date.equals(lastDate))
+        return lastTime;
+      long time = parseDigits(date);
+      for (int i = 0; time < 0 && i < formats.length; i++) {
+        DateFormat format = formats[i];
+        ParsePosition position = new ParsePosition(0);
+        Date d = format.parse(date, position);
+        if (d != null && position.getIndex() == date.length())
+          time = d.getTime();
+      }
+      lastDate = date;
+      lastTime = time;
+      return time;
+    }
+
+    /**
+     * Fast path for the <tt>yyyyMMddHHmmss</tt> form.
+     */
+    private long parseDigits(String date) {
+      if (date.length() != 14)
+        return -1;
+      for (int i = 0; i < 14; i++) {
+        char c = date.charAt(i);
+        if (c < '0' || c > '9')
+          return -1;
+      }
+      // revisions cluster in time, so remember where the current hour starts
+      int hour = digits(date, 0, 10);
+      if (hour != lastHour) {
+        calendar.clear();
+        calendar.set(digits(date, 0, 4), digits(date, 4, 2) - 1, digits(date, 6, 2), digits(date, 8, 2), 0, 0);
+        lastHour = hour;
+        lastHourTime = calendar.getTimeInMillis();
+      }
+      return lastHourTime + digits(date, 10, 2) * 60000L + digits(date, 12, 2) * 1000L;
+    }
+
+    private static int digits(String s, int start, int len) {
+      int n = 0;
+      for (int i = start; i < start + len; i++)
+        n = n * 10 + (s.charAt(i) - '0');
+      return n;
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(SurroundSCMChangeLogIndex.class.getName());
+}
@@ -1,129 +1,66 @@
 package hudson.scm;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
 
-import org.kohsuke.stapler.export.Exported;
 import org.xml.sax.SAXException;
 
 import hudson.model.AbstractBuild;
-import hudson.model.User;
 import hudson.scm.ChangeLogParser;
 import hudson.scm.ChangeLogSet;
 import hudson.scm.ChangeLogSet.Entry;
 import hudson.scm.SurroundSCMChangeLogSet;
-import hudson.scm.SurroundSCMChangeLogSet.SurroundSCMChangeLogSetEntry;
-import hudson.scm.EditType;
 
 public class SurroundSCMChangeLogParser extends ChangeLogParser {
 
+	// grouping window, or -1 to use the global setting
+	private final long windowMillis;
+
+	public SurroundSCMChangeLogParser() {
+		this(-1);
+	}
+
+	/**
+	 * Parser with a fixed grouping window, which does not need a running
+	 * Hudson to look up the global setting.
+	 */
+	SurroundSCMChangeLogParser(long windowMillis) {
+		this.windowMillis = windowMillis;
+	}
+
+	/**
+	 * Only indexes the changelog; entries are read from it when the change
+	 * set is actually looked at.
+	 */
 	@Override
 	public ChangeLogSet<? extends Entry> parse(AbstractBuild build,
 			File changelogFile) throws IOException, SAXException {
 
-		//open the changelog File
-		SurroundSCMChangeLogSet cls = new SurroundSCMChangeLogSet(build);		
-		String line = null;
-		BufferedReader br = null;
-		
-		boolean foundAnItem=false;
-		try{			
-			br = new BufferedReader(new FileReader(changelogFile));
-			while ((line = br.readLine())!=null)
-			{
-				//skip the total line
-				if (foundAnItem == false){
-					foundAnItem=true;
-					continue;
-				}
-					                   	            			
-				//check for count first
-				if (line.startsWith("total-0"))
-					break; //there are none, abandon ship
-				
-				//get the path
-				int end = line.indexOf(">");
-				
-				//sanity check
-				if (end<=0)
-					break;
-				
-				String path = line.substring(1,end);
-				line = line.substring(end+1);
-				
-				//get the name
-				end = line.indexOf(">");
-				//sanity check
-				if (end<=0)
-					break;
-				String name = line.substring(1,end);
-				line = line.substring(end+1);
-				name = path.concat("/").concat(name);
-				
-				//get the version
-				end = line.indexOf(">");
-				//sanity check
-				if (end<=0)
-					break;
-				String version = line.substring(1,end);
-				line = line.substring(end+1);
-				
-				//get the action
-				end = line.indexOf(">");
-				//sanity check
-				if (end<=0)
-					break;
-				String action = line.substring(1,end);
-				line = line.substring(end+1);
-				
-				//get the date
-				end = line.indexOf(">");
-				//sanity check
-				if (end<=0)
-					break;
-				String date = line.substring(1,end);
-				line = line.substring(end+1);
-				
-				//get the comment
-				end = line.indexOf(">");
-				//sanity check
-				if (end<=0)
-					break;
-				String comment = line.substring(1,end);
-				line = line.substring(end+1);
-										
-				//get the user
-				end = line.indexOf(">");
-				//sanity check
-				if (end<=0)
-					break;
-				String userName = line.substring(1,end);
-				line = line.substring(end+1);
-				
-				SurroundSCMChangeLogSetEntry next = new SurroundSCMChangeLogSetEntry(name,comment,version,action,date,cls ,userName);
-				if (!cls.addEntry(next)) //terminate on error
-					break;
-				
-			}	
-			
-		}catch (FileNotFoundException e) {
-		      e.printStackTrace();
-	    } 
-
-		br.close();
-		
-		return cls;
+		SurroundSCMChangeLogIndex index = SurroundSCMChangeLogIndex.open(changelogFile,
+				windowMillis >= 0 ? windowMillis : SurroundSCM.DESCRIPTOR.getChangeSetWindow() * 1000L);
+		return new SurroundSCMChangeLogSet(build, changelogFile, index);
 	}
 
-	
+	/**
+	 * Opens a changelog for reading, whether it holds the sscm output or was
+	 * converted to the compact format.
+	 *
+	 * @param header false to skip the <tt>total-N</tt> header handling of sscm
+	 *               output, for readers that only seek to indexed positions.
+	 */
+	static SurroundSCMChangeLogReader openReader(File changelogFile, boolean header) throws IOException {
+		if (SurroundSCMCompactChangeLog.isCompact(changelogFile))
+			return SurroundSCMCompactChangeLog.open(changelogFile);
+		FileInputStream is = new FileInputStream(changelogFile);
+		return header ? new SurroundSCMChangeLogTokenizer(is) : SurroundSCMChangeLogTokenizer.headerless(is);
+	}
 
+	static final int PATH = 0;
+	static final int NAME = 1;
+	static final int VERSION = 2;
+	static final int ACTION = 3;
+	static final int DATE = 4;
+	static final int COMMENT = 5;
+	static final int USER = 6;
 }
-
@@ -0,0 +1,38 @@
+package hudson.scm;
+
+import java.io.IOException;
+
+/**
+ * Sequential and positioned access to the file revisions of a changelog,
+ * whatever format it is stored in.
+ */
+interface SurroundSCMChangeLogReader {
+
+  /**
+   * Advances to the next well formed revision.
+   *
+   * @return false at the end of the changelog.
+   */
+  boolean next() throws IOException;
+
+  /**
+   * The value of a field of the current revision, indexed by the field
+   * constants of {@link SurroundSCMChangeLogParser}.
+   */
+  String get(int field);
+
+  /**
+   * Position of the current revision, to be passed to {@link #seek(long)}.
+   */
+  long getOffset();
+
+  /**
+   * Repositions the reader so the next call to {@link #next()} returns the
+   * revision at the given position.
+   */
+  void seek(long offset) throws IOException;
+
+  int getMalformedLines();
+
+  void close() throws IOException;
+}
@@ -1,50 +1,356 @@
 package hudson.scm;
 
 import hudson.model.AbstractBuild;
+import hudson.model.Api;
 import hudson.model.User;
 import hudson.scm.ChangeLogSet;
 import hudson.scm.EditType;
 import hudson.scm.SurroundSCMChangeLogSet;
 import hudson.scm.SurroundSCMChangeLogSet.SurroundSCMChangeLogSetEntry;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
 
+/**
+ * Change set backed by the changelog file and its offset index. Entries are
+ * read a page at a time when they are first needed and only a bounded number
+ * of pages is kept in memory, so a build with a huge change set costs next to
+ * nothing until its changes are displayed. Each entry is one changeset, which
+ * may span many files.
+ */
 public final class SurroundSCMChangeLogSet extends ChangeLogSet<SurroundSCMChangeLogSetEntry>
 {
-	protected SurroundSCMChangeLogSet(AbstractBuild<?, ?> build) {		
+	static final int PAGE_SIZE = 64;
+	static final int MAX_CACHED_PAGES = 16;
+
+	// changesets per page of the changes view, and the most one remote API
+	// call returns
+	static final int VIEW_PAGE_SIZE = 100;
+	static final int MAX_VIEW_PAGE_SIZE = 1000;
+	// changesets listed in the build summary
+	static final int DIGEST_SIZE = 10;
+	// files shown per changeset on the changes page
+	static final int MAX_FILES_SHOWN = 200;
+
+	protected SurroundSCMChangeLogSet(AbstractBuild<?, ?> build, File changelogFile, SurroundSCMChangeLogIndex index) {
 		super(build);
-		changes = new ArrayList<SurroundSCMChangeLogSetEntry>();		
+		this.changelogFile = changelogFile;
+		this.index = index;
 	}
 
 	public Iterator<SurroundSCMChangeLogSetEntry> iterator() {
-		return changes.iterator();
+		return new Iterator<SurroundSCMChangeLogSetEntry>() {
+			private int next = 0;
+
+			public boolean hasNext() {
+				return next < size();
+			}
+
+			public SurroundSCMChangeLogSetEntry next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return getEntry(next++);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
 	}
 
 	@Override
 	public boolean isEmptySet() {
-		return changes.isEmpty();
-	}	
-	
-	public boolean addEntry(SurroundSCMChangeLogSetEntry e){
-		return changes.add(e);
+		return index.size() == 0;
+	}
+
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Returns the i-th entry, reading its page from the changelog if it is not
+	 * cached.
+	 */
+	public synchronized SurroundSCMChangeLogSetEntry getEntry(int i) {
+		if (i < 0 || i >= size())
+			throw new IndexOutOfBoundsException(String.valueOf(i));
+		int page = i / PAGE_SIZE;
+		SurroundSCMChangeLogSetEntry[] entries = pages.get(page);
+		if (entries == null) {
+			try {
+				entries = readPage(page);
+			} catch (IOException e) {
+				throw new IllegalStateException("Failed to read " + changelogFile, e);
+			}
+			pages.put(page, entries);
+		}
+		return entries[i % PAGE_SIZE];
+	}
+
+	/**
+	 * Returns up to <tt>limit</tt> entries starting at <tt>offset</tt>.
+	 */
+	public List<SurroundSCMChangeLogSetEntry> getEntries(int offset, int limit) {
+		int from = Math.max(0, Math.min(offset, size()));
+		int to = Math.min(size(), from + Math.max(0, limit));
+		List<SurroundSCMChangeLogSetEntry> entries = new ArrayList<SurroundSCMChangeLogSetEntry>(to - from);
+		for (int i = from; i < to; i++)
+			entries.add(getEntry(i));
+		return entries;
+	}
+
+	/**
+	 * The first entries, listed in the build summary.
+	 */
+	public List<SurroundSCMChangeLogSetEntry> getDigest() {
+		return getEntries(0, DIGEST_SIZE);
+	}
+
+	/**
+	 * The page of entries selected by the <tt>offset</tt> and <tt>limit</tt>
+	 * parameters of the current request. Backs the changes page, and its
+	 * remote API at <tt>changeSet/page/api</tt> lets clients fetch only the
+	 * entries they show.
+	 */
+	public ChangePage getPage() {
+		StaplerRequest req = Stapler.getCurrentRequest();
+		int offset = req == null ? 0 : parseInt(req.getParameter("offset"), 0);
+		int limit = req == null ? VIEW_PAGE_SIZE : parseInt(req.getParameter("limit"), VIEW_PAGE_SIZE);
+		return new ChangePage(this, offset, limit);
+	}
+
+	private static int parseInt(String value, int defaultValue) {
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private SurroundSCMChangeLogSetEntry[] readPage(int page) throws IOException {
+		int first = page * PAGE_SIZE;
+		SurroundSCMChangeLogSetEntry[] entries = new SurroundSCMChangeLogSetEntry[Math.min(PAGE_SIZE, size() - first)];
+
+		SurroundSCMChangeLogReader tokenizer = SurroundSCMChangeLogParser.openReader(changelogFile, false);
+		try {
+			long[][] changesets = index.getOffsets(first, entries.length);
+			for (int n = 0; n < entries.length; n++) {
+				SurroundSCMChangeLogSetEntry entry = null;
+				for (long offset : changesets[n]) {
+					tokenizer.seek(offset);
+					if (!tokenizer.next())
+						throw new IOException(changelogFile + " does not match its index");
+					if (entry == null)
+						entry = new SurroundSCMChangeLogSetEntry(tokenizer.get(SurroundSCMChangeLogParser.COMMENT),
+								tokenizer.get(SurroundSCMChangeLogParser.DATE), this,
+								tokenizer.get(SurroundSCMChangeLogParser.USER));
+					entry.addFile(tokenizer.get(SurroundSCMChangeLogParser.PATH).concat("/").concat(tokenizer.get(SurroundSCMChangeLogParser.NAME)),
+							tokenizer.get(SurroundSCMChangeLogParser.VERSION), tokenizer.get(SurroundSCMChangeLogParser.ACTION));
+				}
+				entries[n] = entry;
+			}
+		} finally {
+			tokenizer.close();
+		}
+		return entries;
+	}
+
+	/**
+	 * Resolves a user name once per change set, since looking users up goes
+	 * through Hudson's synchronized user registry.
+	 */
+	synchronized User getUser(String userName) {
+		User user = users.get(userName);
+		if (user == null) {
+			user = User.get(userName);
+			users.put(userName, user);
+		}
+		return user;
+	}
+
+	private final File changelogFile;
+	private final SurroundSCMChangeLogIndex index;
+	private final Map<String, User> users = new HashMap<String, User>();
+
+	private final Map<Integer, SurroundSCMChangeLogSetEntry[]> pages = new LinkedHashMap<Integer, SurroundSCMChangeLogSetEntry[]>(MAX_CACHED_PAGES, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, SurroundSCMChangeLogSetEntry[]> eldest) {
+			return size() > MAX_CACHED_PAGES;
+		}
+	};
+
+
+	/**
+	 * A window of the change set.
+	 */
+	@ExportedBean(defaultVisibility = 2)
+	public static final class ChangePage {
+
+		private final SurroundSCMChangeLogSet set;
+		private final int offset;
+		private final int limit;
+
+		ChangePage(SurroundSCMChangeLogSet set, int offset, int limit) {
+			this.set = set;
+			this.limit = Math.max(1, Math.min(limit, MAX_VIEW_PAGE_SIZE));
+			this.offset = Math.max(0, offset);
+		}
+
+		@Exported
+		public int getOffset() {
+			return offset;
+		}
+
+		@Exported
+		public int getLimit() {
+			return limit;
+		}
+
+		/**
+		 * Number of entries in the whole change set.
+		 */
+		@Exported
+		public int getTotal() {
+			return set.size();
+		}
+
+		@Exported(inline = true)
+		public List<SurroundSCMChangeLogSetEntry> getItems() {
+			return set.getEntries(offset, limit);
+		}
+
+		/**
+		 * One based number of the last entry on the page.
+		 */
+		public int getEnd() {
+			return Math.min(offset + limit, set.size());
+		}
+
+		public boolean isFirst() {
+			return offset == 0;
+		}
+
+		public boolean isLast() {
+			return offset + limit >= set.size();
+		}
+
+		public int getPreviousOffset() {
+			return Math.max(0, offset - limit);
+		}
+
+		public int getNextOffset() {
+			return offset + limit;
+		}
+
+		public int getLastOffset() {
+			return Math.max(0, set.size() - 1) / limit * limit;
+		}
+
+		public Api getApi() {
+			return new Api(this);
+		}
 	}
-	
-	private Collection<SurroundSCMChangeLogSetEntry> changes;
 
+	/**
+	 * The files of a changeset that are in one directory.
+	 */
+	public static final class Directory {
+
+		private final String path;
+		private final List<SurroundSCMAffectedFile> files = new ArrayList<SurroundSCMAffectedFile>();
+
+		Directory(String path) {
+			this.path = path;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public List<SurroundSCMAffectedFile> getFiles() {
+			return files;
+		}
+	}
+
+	/**
+	 * One file revision of a changeset.
+	 */
+	@ExportedBean(defaultVisibility = 2)
+	public static class SurroundSCMAffectedFile {
+
+		public SurroundSCMAffectedFile(String path, String version, String action) {
+			this.path = path;
+			this.version = version;
+			this.action = action;
+		}
+
+		@Exported
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * The file name without its directory.
+		 */
+		public String getName() {
+			return path.substring(path.lastIndexOf('/') + 1);
+		}
+
+		/**
+		 * The repository directory of the file.
+		 */
+		public String getDirectory() {
+			int slash = path.lastIndexOf('/');
+			return slash < 0 ? "" : path.substring(0, slash);
+		}
+
+		@Exported
+		public String getVersion() {
+			return version;
+		}
+
+		@Exported
+		public String getAction() {
+			return action;
+		}
+
+		@Exported
+		public EditType getEditType() {
+		    if (action.equalsIgnoreCase("delete")) {
+		        return EditType.DELETE;
+		    }
+		    if (action.equalsIgnoreCase("add")) {
+		        return EditType.ADD;
+		    }
+		    return EditType.EDIT;
+		}
+
+		private final String path;
+		private final String version;
+		private final String action; //default is edit
+	}
 
 	public static class SurroundSCMChangeLogSetEntry extends ChangeLogSet.Entry{
 	
-		public SurroundSCMChangeLogSetEntry(String name, String comment, String version, String action, String date,ChangeLogSet parent, String userName ){
-			this.affectedFile = name;
+		public SurroundSCMChangeLogSetEntry(String comment, String date, ChangeLogSet parent, String userName){
 			this.comment = comment;
-			this.version = version;
-			this.action = action;
 			this.date = date;
-			this.user = User.get(userName);
+			this.userName = userName;
 			setParent(parent);
 		}
 		
@@ -52,73 +358,108 @@ public final class SurroundSCMChangeLogSet extends ChangeLogSet<SurroundSCMChang
 		{		
 		}
 		
+		public void addFile(String name, String version, String action) {
+			files.add(new SurroundSCMAffectedFile(name, version, action));
+		}
 		
 		@Override
 		public String getMsg() {
-			return "File: ".concat(affectedFile).concat(" Action: ").concat(action).concat(" Version: ").concat(version).concat(" Comment: ").concat(comment);
+			if (files.size() == 1)
+				return "File: ".concat(getAffectedFile()).concat(" Action: ").concat(getAction()).concat(" Version: ").concat(getVersion()).concat(" Comment: ").concat(comment);
+			return files.size() + " files Comment: ".concat(comment);
 		}
 		
 		@Override
 		public String getMsgAnnotated() {
-			return affectedFile;
+			if (files.size() == 1)
+				return getAffectedFile();
+			return getAffectedFile() + " (and " + (files.size() - 1) + " more)";
 		}
 			
 		public String getVersion(){
-			return version;
+			return files.isEmpty() ? null : files.get(0).getVersion();
 		}
 		
 		public String getName(){
-			return affectedFile;
+			return getAffectedFile();
 		}
 		
 		public String getAffectedFile(){
-			return affectedFile;
+			return files.isEmpty() ? null : files.get(0).getPath();
 		}
 		
 		public String getAction(){
-			return action;
+			return files.isEmpty() ? null : files.get(0).getAction();
 		}
 		public String getComment(){
 			return comment;
 		}	
 		
+		public String getDate(){
+			return date;
+		}
+		
+		@Exported
+		public List<SurroundSCMAffectedFile> getFiles() {
+			return files;
+		}
+		
+		/**
+		 * The first {@link #MAX_FILES_SHOWN} files grouped by directory, in
+		 * the order the directories first appear.
+		 */
+		public List<Directory> getDirectories() {
+			Map<String, Directory> directories = new LinkedHashMap<String, Directory>();
+			for (SurroundSCMAffectedFile f : files.subList(0, Math.min(files.size(), MAX_FILES_SHOWN))) {
+				Directory directory = directories.get(f.getDirectory());
+				if (directory == null) {
+					directory = new Directory(f.getDirectory());
+					directories.put(f.getDirectory(), directory);
+				}
+				directory.getFiles().add(f);
+			}
+			return new ArrayList<Directory>(directories.values());
+		}
+
+		/**
+		 * Number of files left out of {@link #getDirectories}.
+		 */
+		public int getHiddenFiles() {
+			return Math.max(0, files.size() - MAX_FILES_SHOWN);
+		}
+
 		@Override
 		public Collection<String> getAffectedPaths() {
-			Collection<String> col = new ArrayList<String>();
-			col.add(affectedFile);
+			Collection<String> col = new ArrayList<String>(files.size());
+			for (SurroundSCMAffectedFile f : files)
+				col.add(f.getPath());
 			return col;
 		}
 		
 		@Override
 		public User getAuthor() {
-			if (user == null)
+			if (userName == null)
 				return User.getUnknown();
-			return user;
+			if (getParent() instanceof SurroundSCMChangeLogSet)
+				return ((SurroundSCMChangeLogSet) getParent()).getUser(userName);
+			return User.get(userName);
 		}
 		
 		
 		@Exported
 		public EditType getEditType() {
-		    if (action.equalsIgnoreCase("delete")) {
-		        return EditType.DELETE;
-		    }
-		    if (action.equalsIgnoreCase("add")) {
-		        return EditType.ADD;
-		    }
-		    return EditType.EDIT;
+			return files.isEmpty() ? EditType.EDIT : files.get(0).getEditType();
 		}
 		
 		@Exported
 		String getPath(){
-			return affectedFile;
+			return getAffectedFile();
 		}
 		
 		private String comment;
-		String affectedFile;
-		String version;
 		String date;
-		private User user;
-		private String action; //default is edit	
+		private String userName;
+		private final List<SurroundSCMAffectedFile> files = new ArrayList<SurroundSCMAffectedFile>(1);
 			
 	}
 }
@@ -0,0 +1,326 @@
+package hudson.scm;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Single pass reader for <tt>sscm cc</tt> output. Lines are scanned in place in
+ * a reusable buffer and only the fields that are asked for are turned into
+ * Strings; values that repeat from line to line (paths, users, actions,
+ * dates, comments) are handed out from a small pool instead of being decoded
+ * again.
+ * <p>
+ * The buffer holds raw bytes rather than chars: the <tt>&lt;</tt>, <tt>&gt;</tt>
+ * and newline delimiters are single bytes in every charset sscm writes, so
+ * only field contents ever need decoding and {@link #getOffset()} is a real
+ * position in the file.
+ * <p>
+ * Malformed lines are skipped and counted rather than ending the parse.
+ */
+final class SurroundSCMChangeLogTokenizer implements SurroundSCMChangeLogReader {
+
+  private static final int FIELDS = SurroundSCMChangeLogParser.USER + 1;
+  private static final byte[] TOTAL = { 't', 'o', 't', 'a', 'l', '-' };
+
+  private final InputStream in;
+  private final Charset charset;
+  // set when reading a file, which makes the tokenizer seekable
+  private final FileChannel channel;
+
+  private byte[] buf = new byte[64 * 1024];
+  private int pos;
+  private int limit;
+  private boolean eof;
+  // file offset of buf[0]
+  private long bufOffset;
+
+  // the current line is buf[lineStart, lineEnd)
+  private int lineStart;
+  private int lineEnd;
+  private final int[] fieldStart = new int[FIELDS];
+  private final int[] fieldEnd = new int[FIELDS];
+
+  private boolean headerRead;
+  private int total = -1;
+  private int malformedLines;
+  private int entries;
+
+  private final String[] pool = new String[1024];
+  private final byte[][] poolBytes = new byte[1024][];
+  private final String[] lastValue = new String[FIELDS];
+  private final byte[][] lastBytes = new byte[FIELDS][];
+
+  SurroundSCMChangeLogTokenizer(InputStream in) {
+    this(in, Charset.defaultCharset());
+  }
+
+  SurroundSCMChangeLogTokenizer(InputStream in, Charset charset) {
+    this.in = in;
+    this.charset = charset;
+    this.channel = in instanceof FileInputStream ? ((FileInputStream) in).getChannel() : null;
+  }
+
+  /**
+   * Creates a tokenizer positioned in the middle of a changelog, where there
+   * is no <tt>total-N</tt> header to skip.
+   */
+  static SurroundSCMChangeLogTokenizer headerless(InputStream in) {
+    SurroundSCMChangeLogTokenizer tokenizer = new SurroundSCMChangeLogTokenizer(in);
+    tokenizer.headerRead = true;
+    return tokenizer;
+  }
+
+  /**
+   * Advances to the next well formed entry.
+   *
+   * @return false at the end of the input.
+   */
+  public boolean next() throws IOException {
+    while (readLine()) {
+      if (!headerRead) {
+        headerRead = true;
+        total = parseTotal();
+        continue;
+      }
+      if (lineEnd == lineStart)
+        continue;
+      if (split()) {
+        entries++;
+        return true;
+      }
+      malformedLines++;
+    }
+    return false;
+  }
+
+  /**
+   * Repositions the tokenizer so the next call to {@link #next()} reads the
+   * line starting at the given offset. Seeking within the buffered data does
+   * not touch the file, so reading nearby lines in order is cheap.
+   */
+  public void seek(long offset) throws IOException {
+    if (offset >= bufOffset && offset <= bufOffset + limit) {
+      pos = (int) (offset - bufOffset);
+      return;
+    }
+    if (channel == null)
+      throw new IOException("Cannot seek outside of the buffered data");
+    channel.position(offset);
+    bufOffset = offset;
+    pos = 0;
+    limit = 0;
+    eof = false;
+  }
+
+  /**
+   * The value of a field of the current entry, indexed by the field constants
+   * of {@link SurroundSCMChangeLogParser}.
+   */
+  public String get(int field) {
+    int start = fieldStart[field];
+    int len = fieldEnd[field] - start;
+    switch (field) {
+    case SurroundSCMChangeLogParser.NAME:
+    case SurroundSCMChangeLogParser.VERSION:
+      return new String(buf, start, len, charset);
+    case SurroundSCMChangeLogParser.DATE:
+    case SurroundSCMChangeLogParser.COMMENT:
+      // too many distinct values to pool, but runs of them are common
+      byte[] prev = lastBytes[field];
+      if (prev != null && sameBytes(prev, start, len))
+        return lastValue[field];
+      String s = new String(buf, start, len, charset);
+      lastBytes[field] = copy(start, len);
+      lastValue[field] = s;
+      return s;
+    default:
+      // consecutive lines of a changeset repeat these, which is cheaper to
+      // see than looking them up in the pool
+      byte[] last = lastBytes[field];
+      if (last != null && sameBytes(last, start, len))
+        return lastValue[field];
+      int slot = pooled(start, len);
+      lastBytes[field] = poolBytes[slot];
+      lastValue[field] = pool[slot];
+      return pool[slot];
+    }
+  }
+
+  /**
+   * Offset in the input of the first byte of the current entry.
+   */
+  public long getOffset() {
+    return bufOffset + lineStart;
+  }
+
+  /**
+   * The count reported on the <tt>total-N</tt> header, or -1 if there was none.
+   */
+  int getTotal() {
+    return total;
+  }
+
+  public int getMalformedLines() {
+    return malformedLines;
+  }
+
+  int getEntries() {
+    return entries;
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Locates the next line in the buffer, refilling and growing it as needed.
+   * The terminating newline and any carriage return are excluded.
+   */
+  private boolean readLine() throws IOException {
+    int from = pos;
+    while (true) {
+      for (int i = from; i < limit; i++) {
+        if (buf[i] == '\n') {
+          lineStart = pos;
+          lineEnd = i;
+          pos = i + 1;
+          trimLineEnd();
+          return true;
+        }
+      }
+      if (eof) {
+        if (pos == limit)
+          return false;
+        lineStart = pos;
+        lineEnd = limit;
+        pos = limit;
+        trimLineEnd();
+        return true;
+      }
+      // fill() moves the partial line to the front of the buffer
+      int scanned = limit - pos;
+      fill();
+      from = pos + scanned;
+    }
+  }
+
+  private void trimLineEnd() {
+    while (lineEnd > lineStart && (buf[lineEnd - 1] == '\r' || buf[lineEnd - 1] == ' '))
+      lineEnd--;
+  }
+
+  private void fill() throws IOException {
+    if (pos > 0) {
+      System.arraycopy(buf, pos, buf, 0, limit - pos);
+      bufOffset += pos;
+      limit -= pos;
+      pos = 0;
+    }
+    if (limit == buf.length) {
+      byte[] bigger = new byte[buf.length * 2];
+      System.arraycopy(buf, 0, bigger, 0, limit);
+      buf = bigger;
+    }
+    int n = in.read(buf, limit, buf.length - limit);
+    if (n < 0)
+      eof = true;
+    else
+      limit += n;
+  }
+
+  private int parseTotal() {
+    int i = lineStart;
+    if (lineEnd - i <= TOTAL.length)
+      return -1;
+    for (int j = 0; j < TOTAL.length; j++, i++) {
+      if (buf[i] != TOTAL[j])
+        return -1;
+    }
+    int n = 0;
+    for (; i < lineEnd; i++) {
+      byte b = buf[i];
+      if (b < '0' || b > '9')
+        return -1;
+      n = n * 10 + (b - '0');
+    }
+    return n;
+  }
+
+  /**
+   * Finds the field boundaries of the current line. Every field but the
+   * comment ends at the first <tt>&gt;</tt>; the comment may itself contain
+   * <tt>&gt;</tt>, so it is whatever lies between the date and the user, the
+   * latter being located from the end of the line.
+   */
+  private boolean split() {
+    int i = lineStart;
+    for (int f = 0; f < SurroundSCMChangeLogParser.COMMENT; f++) {
+      if (i >= lineEnd || buf[i] != '<')
+        return false;
+      int start = ++i;
+      while (i < lineEnd && buf[i] != '>')
+        i++;
+      if (i == lineEnd)
+        return false;
+      fieldStart[f] = start;
+      fieldEnd[f] = i++;
+    }
+
+    // user: the last <...> on the line
+    int end = lineEnd - 1;
+    if (end <= i || buf[end] != '>')
+      return false;
+    int j = end - 1;
+    while (j > i && buf[j] != '<')
+      j--;
+    if (j <= i || buf[j - 1] != '>')
+      return false;
+    fieldStart[SurroundSCMChangeLogParser.USER] = j + 1;
+    fieldEnd[SurroundSCMChangeLogParser.USER] = end;
+
+    // comment: everything between the date and the user
+    if (buf[i] != '<' || i + 1 > j - 1)
+      return false;
+    fieldStart[SurroundSCMChangeLogParser.COMMENT] = i + 1;
+    fieldEnd[SurroundSCMChangeLogParser.COMMENT] = j - 1;
+    return true;
+  }
+
+  /**
+   * Makes the pool hold the given bytes.
+   *
+   * @return the pool slot holding them.
+   */
+  private int pooled(int start, int len) {
+    int h = 0;
+    for (int i = start; i < start + len; i++)
+      h = 31 * h + buf[i];
+    int slot = (h ^ (h >>> 16)) & (pool.length - 1);
+
+    byte[] candidate = poolBytes[slot];
+    if (candidate == null || !sameBytes(candidate, start, len)) {
+      poolBytes[slot] = copy(start, len);
+      pool[slot] = new String(buf, start, len, charset);
+    }
+    return slot;
+  }
+
+  private boolean sameBytes(byte[] candidate, int start, int len) {
+    if (candidate.length != len)
+      return false;
+    for (int k = 0; k < len; k++) {
+      if (candidate[k] != buf[start + k])
+        return false;
+    }
+    return true;
+  }
+
+  private byte[] copy(int start, int len) {
+    byte[] copy = new byte[len];
+    System.arraycopy(buf, start, copy, 0, len);
+    return copy;
+  }
+}
@@ -0,0 +1,127 @@
+package hudson.scm;
+
+import hudson.FilePath;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Records how far a partitioned checkout got: the timestamp it fetches at and
+ * the partitions that are complete. It is written to the workspace root when
+ * the checkout starts, updated as partitions finish and removed once the
+ * workspace is complete, so a checkout that failed partway can be resumed by
+ * the next build instead of fetching everything again.
+ */
+public final class SurroundSCMCheckoutProgress {
+
+  public static final String FILE_NAME = ".sscm-checkout";
+
+  private static final String HEADER = "# Surround SCM checkout progress";
+  private static final String TIMESTAMP_KEY = "timestamp=";
+  private static final String SOURCE_KEY = "source=";
+  // the partition holding the files at the root of the repository
+  private static final String ROOT = "/";
+
+  private final FilePath workspace;
+  private final String source;
+  private final Date timestamp;
+  private final Set<String> done = new TreeSet<String>();
+
+  private SurroundSCMCheckoutProgress(FilePath workspace, String source, Date timestamp) {
+    this.workspace = workspace;
+    this.source = source;
+    this.timestamp = new Date(timestamp.getTime());
+  }
+
+  public Date getTimestamp() {
+    return new Date(timestamp.getTime());
+  }
+
+  public synchronized boolean isDone(String partition) {
+    return done.contains(partition);
+  }
+
+  public synchronized int getDone() {
+    return done.size();
+  }
+
+  /**
+   * Starts recording a checkout at the given timestamp, replacing whatever
+   * was recorded before.
+   */
+  public static SurroundSCMCheckoutProgress start(FilePath workspace, String source, Date timestamp) throws IOException, InterruptedException {
+    SurroundSCMCheckoutProgress progress = new SurroundSCMCheckoutProgress(workspace, source, timestamp);
+    progress.save();
+    return progress;
+  }
+
+  /**
+   * Reads the progress of an unfinished checkout of the given source.
+   *
+   * @return the progress, or null if there is none, it is for another
+   *         source, or it cannot be understood.
+   */
+  public static SurroundSCMCheckoutProgress load(FilePath workspace, String source) throws IOException, InterruptedException {
+    FilePath file = workspace.child(FILE_NAME);
+    if (!file.exists())
+      return null;
+
+    BufferedReader br = new BufferedReader(new StringReader(file.readToString()));
+    String line = br.readLine();
+    if (line == null || !line.equals(HEADER))
+      return null;
+
+    line = br.readLine();
+    if (line == null || !line.startsWith(TIMESTAMP_KEY))
+      return null;
+    Date timestamp;
+    try {
+      timestamp = new SimpleDateFormat(SurroundSCM.SURROUND_DATETIME_FORMAT_STR).parse(line.substring(TIMESTAMP_KEY.length()));
+    } catch (ParseException e) {
+      return null;
+    }
+
+    line = br.readLine();
+    if (line == null || !line.equals(SOURCE_KEY.concat(source)))
+      return null;
+
+    SurroundSCMCheckoutProgress progress = new SurroundSCMCheckoutProgress(workspace, source, timestamp);
+    while ((line = br.readLine()) != null) {
+      if (line.length() > 0)
+        progress.done.add(line.equals(ROOT) ? "" : line);
+    }
+    return progress;
+  }
+
+  /**
+   * Records that a partition is complete, "" standing for the files at the
+   * root of the repository.
+   */
+  public synchronized void markDone(String partition) throws IOException, InterruptedException {
+    done.add(partition);
+    save();
+  }
+
+  /**
+   * Removes the record once the workspace is complete.
+   */
+  public static void clear(FilePath workspace) throws IOException, InterruptedException {
+    workspace.child(FILE_NAME).delete();
+  }
+
+  private synchronized void save() throws IOException, InterruptedException {
+    StringBuilder sb = new StringBuilder();
+    sb.append(HEADER).append('\n');
+    sb.append(TIMESTAMP_KEY).append(new SimpleDateFormat(SurroundSCM.SURROUND_DATETIME_FORMAT_STR).format(timestamp)).append('\n');
+    sb.append(SOURCE_KEY).append(source).append('\n');
+    for (String partition : done)
+      sb.append(partition.length() == 0 ? ROOT : partition).append('\n');
+    workspace.child(FILE_NAME).write(sb.toString(), "UTF-8");
+  }
+}
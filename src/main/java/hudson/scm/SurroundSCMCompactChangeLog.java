@@ -0,0 +1,435 @@
+package hudson.scm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact storage for changelogs. Every distinct path, name, action, comment
+ * and user is stored once in a string table and revisions refer to it by
+ * number; numeric versions and <tt>yyyyMMddHHmmss</tt> dates are stored as
+ * variable length integers, dates as the difference to the previous
+ * revision. Revisions are deflated in blocks of {@link #BLOCK_LINES} so any
+ * one of them can be read by inflating a single block.
+ * <p>
+ * Layout: magic, format version, the count from the <tt>total-N</tt> header,
+ * revision count, malformed line count, block count, the position of every
+ * block, then the string table and the revision blocks, each as a length
+ * followed by deflated data.
+ * <p>
+ * {@link #getOffset()} is the number of the revision, which is what the
+ * changelog index stores for files in this format.
+ */
+final class SurroundSCMCompactChangeLog implements SurroundSCMChangeLogReader {
+
+  static final int MAGIC = 0x53534342; // "SSCB"
+  private static final int VERSION = 1;
+  static final int BLOCK_LINES = 4096;
+
+  private static final int FIELDS = SurroundSCMChangeLogParser.USER + 1;
+
+  // a change set opens its changelog again for every page it reads, so the
+  // string tables of the most recently opened changelogs are kept while
+  // memory allows
+  static final int MAX_CACHED_TABLES = 8;
+  private static final Map<String, SoftReference<String[]>> TABLES =
+        new LinkedHashMap<String, SoftReference<String[]>>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, SoftReference<String[]>> eldest) {
+      return size() > MAX_CACHED_TABLES;
+    }
+  };
+
+  private final RandomAccessFile file;
+  private final int lines;
+  private final int malformedLines;
+  private final long[] blocks;
+  private final String[] strings;
+
+  private final String[] fields = new String[FIELDS];
+  private byte[] block;
+  private int blockIndex = -1;
+  private int blockPos;
+  private long previousDate;
+  // number of the revision next() returns next
+  private int next;
+  private int current = -1;
+
+  private SurroundSCMCompactChangeLog(File changelogFile) throws IOException {
+    file = new RandomAccessFile(changelogFile, "r");
+    try {
+      if (file.readInt() != MAGIC || file.readInt() != VERSION)
+        throw new IOException(changelogFile + " is not a compact Surround SCM changelog");
+      file.readInt(); // total
+      lines = file.readInt();
+      malformedLines = file.readInt();
+      blocks = new long[file.readInt()];
+      for (int i = 0; i < blocks.length; i++)
+        blocks[i] = file.readLong();
+
+      // the file is only ever replaced, never changed in place
+      String key = changelogFile.getAbsolutePath() + ':' + changelogFile.length() + ':' + changelogFile.lastModified();
+      String[] table = cachedTable(key);
+      if (table == null) {
+        Input in = new Input(inflate(readChunk()));
+        table = new String[in.readVarInt()];
+        for (int i = 0; i < table.length; i++)
+          table[i] = in.readString();
+        synchronized (TABLES) {
+          TABLES.put(key, new SoftReference<String[]>(table));
+        }
+      }
+      strings = table;
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  private static String[] cachedTable(String key) {
+    synchronized (TABLES) {
+      SoftReference<String[]> ref = TABLES.get(key);
+      return ref == null ? null : ref.get();
+    }
+  }
+
+  /**
+   * Whether the file is stored in this format rather than as sscm output.
+   */
+  static boolean isCompact(File changelogFile) throws IOException {
+    if (changelogFile.length() < 4)
+      return false;
+    DataInputStream in = new DataInputStream(new FileInputStream(changelogFile));
+    try {
+      return in.readInt() == MAGIC;
+    } finally {
+      in.close();
+    }
+  }
+
+  static SurroundSCMCompactChangeLog open(File changelogFile) throws IOException {
+    return new SurroundSCMCompactChangeLog(changelogFile);
+  }
+
+  public boolean next() throws IOException {
+    if (next >= lines)
+      return false;
+    int b = next / BLOCK_LINES;
+    if (b != blockIndex)
+      loadBlock(b);
+    decode();
+    current = next++;
+    return true;
+  }
+
+  public String get(int field) {
+    return fields[field];
+  }
+
+  public long getOffset() {
+    return current;
+  }
+
+  public void seek(long offset) throws IOException {
+    int target = (int) offset;
+    int b = target / BLOCK_LINES;
+    if (b != blockIndex || target < next)
+      loadBlock(b);
+    while (next < target) {
+      decode();
+      next++;
+    }
+  }
+
+  public int getMalformedLines() {
+    return malformedLines;
+  }
+
+  public void close() throws IOException {
+    file.close();
+  }
+
+  private void loadBlock(int b) throws IOException {
+    file.seek(blocks[b]);
+    block = inflate(readChunk());
+    blockIndex = b;
+    blockPos = 0;
+    previousDate = 0;
+    next = b * BLOCK_LINES;
+  }
+
+  private byte[] readChunk() throws IOException {
+    byte[] chunk = new byte[file.readInt()];
+    file.readFully(chunk);
+    return chunk;
+  }
+
+  private void decode() throws IOException {
+    Input in = new Input(block, blockPos);
+    fields[SurroundSCMChangeLogParser.PATH] = strings[in.readVarInt()];
+    fields[SurroundSCMChangeLogParser.NAME] = strings[in.readVarInt()];
+    long version = in.readVarLong();
+    fields[SurroundSCMChangeLogParser.VERSION] = version == 0 ? strings[in.readVarInt()] : Long.toString(version - 1);
+    fields[SurroundSCMChangeLogParser.ACTION] = strings[in.readVarInt()];
+    long date = in.readVarLong();
+    if (date == 0) {
+      fields[SurroundSCMChangeLogParser.DATE] = strings[in.readVarInt()];
+    } else {
+      previousDate += unzigzag(date - 1);
+      fields[SurroundSCMChangeLogParser.DATE] = formatDate(previousDate);
+    }
+    fields[SurroundSCMChangeLogParser.COMMENT] = strings[in.readVarInt()];
+    fields[SurroundSCMChangeLogParser.USER] = strings[in.readVarInt()];
+    blockPos = in.pos;
+  }
+
+  /**
+   * Rewrites a changelog holding sscm output in this format. Files that are
+   * already compact are left alone.
+   */
+  static void convert(File changelogFile) throws IOException {
+    if (!changelogFile.exists() || isCompact(changelogFile))
+      return;
+
+    File tmp = new File(changelogFile.getPath() + ".tmp");
+    InputStream is = new FileInputStream(changelogFile);
+    try {
+      SurroundSCMChangeLogTokenizer tokenizer = new SurroundSCMChangeLogTokenizer(is);
+      write(tokenizer, tmp);
+    } finally {
+      is.close();
+    }
+    if (!changelogFile.delete() || !tmp.renameTo(changelogFile))
+      throw new IOException("Failed to replace " + changelogFile + " with its compact form");
+  }
+
+  private static void write(SurroundSCMChangeLogTokenizer tokenizer, File target) throws IOException {
+    Map<String, Integer> ids = new HashMap<String, Integer>();
+    List<String> table = new ArrayList<String>();
+    List<byte[]> blocks = new ArrayList<byte[]>();
+    Output records = new Output();
+    long previousDate = 0;
+    int lines = 0;
+
+    while (tokenizer.next()) {
+      if (lines > 0 && lines % BLOCK_LINES == 0) {
+        blocks.add(deflate(records.toByteArray()));
+        records = new Output();
+        previousDate = 0;
+      }
+      records.writeVarInt(id(tokenizer.get(SurroundSCMChangeLogParser.PATH), ids, table));
+      records.writeVarInt(id(tokenizer.get(SurroundSCMChangeLogParser.NAME), ids, table));
+      String version = tokenizer.get(SurroundSCMChangeLogParser.VERSION);
+      long number = parseNumber(version, 18);
+      if (number >= 0) {
+        records.writeVarLong(number + 1);
+      } else {
+        records.writeVarLong(0);
+        records.writeVarInt(id(version, ids, table));
+      }
+      records.writeVarInt(id(tokenizer.get(SurroundSCMChangeLogParser.ACTION), ids, table));
+      String date = tokenizer.get(SurroundSCMChangeLogParser.DATE);
+      long dateNumber = date.length() == 14 ? parseNumber(date, 14) : -1;
+      if (dateNumber >= 0) {
+        records.writeVarLong(zigzag(dateNumber - previousDate) + 1);
+        previousDate = dateNumber;
+      } else {
+        records.writeVarLong(0);
+        records.writeVarInt(id(date, ids, table));
+      }
+      records.writeVarInt(id(tokenizer.get(SurroundSCMChangeLogParser.COMMENT), ids, table));
+      records.writeVarInt(id(tokenizer.get(SurroundSCMChangeLogParser.USER), ids, table));
+      lines++;
+    }
+    if (records.size() > 0)
+      blocks.add(deflate(records.toByteArray()));
+
+    Output strings = new Output();
+    strings.writeVarInt(table.size());
+    for (String s : table)
+      strings.writeString(s);
+    byte[] stringBlock = deflate(strings.toByteArray());
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(tokenizer.getTotal());
+      out.writeInt(lines);
+      out.writeInt(tokenizer.getMalformedLines());
+      out.writeInt(blocks.size());
+      long position = 4 * 6 + 8L * blocks.size() + 4 + stringBlock.length;
+      for (byte[] b : blocks) {
+        out.writeLong(position);
+        position += 4 + b.length;
+      }
+      out.writeInt(stringBlock.length);
+      out.write(stringBlock);
+      for (byte[] b : blocks) {
+        out.writeInt(b.length);
+        out.write(b);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static int id(String s, Map<String, Integer> ids, List<String> table) {
+    Integer id = ids.get(s);
+    if (id == null) {
+      id = table.size();
+      ids.put(s, id);
+      table.add(s);
+    }
+    return id;
+  }
+
+  /**
+   * @return the value of a plain decimal number that formats back to the
+   *         same string, or -1.
+   */
+  private static long parseNumber(String s, int maxDigits) {
+    int len = s.length();
+    if (len == 0 || len > maxDigits || (len > 1 && s.charAt(0) == '0' && maxDigits != 14))
+      return -1;
+    long n = 0;
+    for (int i = 0; i < len; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9')
+        return -1;
+      n = n * 10 + (c - '0');
+    }
+    return n;
+  }
+
+  private static String formatDate(long n) {
+    String s = Long.toString(n);
+    if (s.length() >= 14)
+      return s;
+    StringBuilder sb = new StringBuilder(14);
+    for (int i = s.length(); i < 14; i++)
+      sb.append('0');
+    return sb.append(s).toString();
+  }
+
+  private static long zigzag(long n) {
+    return (n << 1) ^ (n >> 63);
+  }
+
+  private static long unzigzag(long n) {
+    return (n >>> 1) ^ -(n & 1);
+  }
+
+  private static byte[] deflate(byte[] data) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 16);
+      byte[] buf = new byte[8192];
+      while (!deflater.finished()) {
+        int n = deflater.deflate(buf);
+        out.write(buf, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] data) throws IOException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(data);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+      byte[] buf = new byte[8192];
+      while (!inflater.finished()) {
+        int n = inflater.inflate(buf);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+          throw new IOException("Truncated compact changelog block");
+        out.write(buf, 0, n);
+      }
+      return out.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt compact changelog block: " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static final class Output extends ByteArrayOutputStream {
+    void writeVarInt(int n) {
+      writeVarLong(n & 0xffffffffL);
+    }
+
+    void writeVarLong(long n) {
+      while ((n & ~0x7fL) != 0) {
+        write((int) ((n & 0x7f) | 0x80));
+        n >>>= 7;
+      }
+      write((int) n);
+    }
+
+    void writeString(String s) throws IOException {
+      byte[] bytes = s.getBytes("UTF-8");
+      writeVarInt(bytes.length);
+      write(bytes);
+    }
+  }
+
+  private static final class Input {
+    private final byte[] data;
+    int pos;
+
+    Input(byte[] data) {
+      this(data, 0);
+    }
+
+    Input(byte[] data, int pos) {
+      this.data = data;
+      this.pos = pos;
+    }
+
+    int readVarInt() throws IOException {
+      return (int) readVarLong();
+    }
+
+    long readVarLong() throws IOException {
+      long n = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (pos >= data.length)
+          throw new IOException("Truncated compact changelog record");
+        byte b = data[pos++];
+        n |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0)
+          return n;
+      }
+      throw new IOException("Corrupt compact changelog record");
+    }
+
+    String readString() throws IOException {
+      int len = readVarInt();
+      if (len < 0 || pos + len > data.length)
+        throw new IOException("Truncated compact changelog string");
+      String s = new String(data, pos, len, "UTF-8");
+      pos += len;
+      return s;
+    }
+  }
+}
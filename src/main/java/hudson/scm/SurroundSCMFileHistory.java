@@ -0,0 +1,589 @@
+package hudson.scm;
+
+import hudson.model.Job;
+import hudson.model.Run;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Which builds of a job included which file revisions, so the history of a
+ * path can be answered without parsing every build's changelog. Each build's
+ * revisions are appended to a file in the job's directory when its changelog
+ * is written; the file is read once and then kept in memory as a sorted map
+ * from path to revisions.
+ * <p>
+ * Layout: magic and format version, then one block per build: build number,
+ * revision count, and per revision its path, version, action and user. The
+ * strings are written once per file and referred to by number afterwards
+ * (0 means a new string follows, n the (n-1)-th string written), so the
+ * paths and users that recur across builds cost a few bytes each. A block
+ * cut short by a crash, or that cannot be read, is dropped together with
+ * everything after it when the file is read; catching up records those
+ * builds again from their changelogs.
+ */
+public final class SurroundSCMFileHistory {
+
+  private static final Logger LOGGER = Logger.getLogger(SurroundSCMFileHistory.class.getName());
+
+  static final String FILE_NAME = "sscm-history.dat";
+  // where Hudson keeps the changelog of a build
+  static final String CHANGELOG_FILE_NAME = "changelog.xml";
+
+  private static final int MAGIC = 0x53534348; // "SSCH"
+  private static final int VERSION = 1;
+
+  /**
+   * One revision of a file, as included by a build.
+   */
+  @ExportedBean(defaultVisibility = 2)
+  public static final class Revision {
+    private final String path;
+    private final int build;
+    private final String version;
+    private final String action;
+    private final String user;
+
+    Revision(String path, int build, String version, String action, String user) {
+      this.path = path;
+      this.build = build;
+      this.version = version;
+      this.action = action;
+      this.user = user;
+    }
+
+    @Exported
+    public String getPath() {
+      return path;
+    }
+
+    @Exported
+    public int getBuild() {
+      return build;
+    }
+
+    @Exported
+    public String getVersion() {
+      return version;
+    }
+
+    @Exported
+    public String getAction() {
+      return action;
+    }
+
+    @Exported
+    public String getUser() {
+      return user;
+    }
+  }
+
+  private static final Comparator<Revision> BY_BUILD = new Comparator<Revision>() {
+    public int compare(Revision a, Revision b) {
+      return a.build < b.build ? -1 : a.build == b.build ? 0 : 1;
+    }
+  };
+
+  /**
+   * The revisions of one path, four ints each: build, version, action and
+   * user, the last three as string numbers.
+   */
+  private static final class Postings {
+    private int[] data = new int[4];
+    private int size;
+
+    void add(int build, int version, int action, int user) {
+      if (size + 4 > data.length) {
+        int[] grown = new int[data.length * 2];
+        System.arraycopy(data, 0, grown, 0, size);
+        data = grown;
+      }
+      data[size++] = build;
+      data[size++] = version;
+      data[size++] = action;
+      data[size++] = user;
+    }
+  }
+
+  private final File file;
+  private final List<String> strings = new ArrayList<String>();
+  private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+  private final TreeMap<String, Postings> paths = new TreeMap<String, Postings>();
+  private final Set<Integer> builds = new HashSet<Integer>();
+  private long revisions;
+  // builds whose changelog could not be read, not tried again
+  private final Set<Integer> unreadable = new HashSet<Integer>();
+  private boolean catchingUp;
+
+  private SurroundSCMFileHistory(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Loads the history kept in the given job directory.
+   */
+  static SurroundSCMFileHistory load(File jobDir) throws IOException {
+    SurroundSCMFileHistory history = new SurroundSCMFileHistory(new File(jobDir, FILE_NAME));
+    history.read();
+    return history;
+  }
+
+  /**
+   * Records the builds of the job that finished before the history was kept
+   * or while recording was not possible, and forgets the builds that were
+   * deleted or rotated away. Changelogs are parsed one build at a time
+   * without holding the history's lock, so checkouts recording their own
+   * builds are not held up; a call made while another thread is catching up
+   * returns at once.
+   */
+  void catchUp(Job<?, ?> job) {
+    List<Run<?, ?>> missing = new ArrayList<Run<?, ?>>();
+    Set<Integer> existing = new HashSet<Integer>();
+    synchronized (this) {
+      if (catchingUp)
+        return;
+      catchingUp = true;
+      for (Run<?, ?> run : job.getBuilds()) {
+        existing.add(run.getNumber());
+        // a build still checking out records itself when its changelog is written
+        if (!builds.contains(run.getNumber()) && !unreadable.contains(run.getNumber()) && !run.isBuilding())
+          missing.add(run);
+      }
+    }
+
+    try {
+      for (Run<?, ?> run : missing) {
+        File changelogFile = new File(run.getRootDir(), CHANGELOG_FILE_NAME);
+        if (!changelogFile.exists())
+          continue;
+        try {
+          add(run.getNumber(), changelogFile);
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING, "Failed to record the file history of " + run.getFullDisplayName(), e);
+          synchronized (this) {
+            unreadable.add(run.getNumber());
+          }
+        }
+      }
+      prune(existing);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to drop deleted builds from " + file, e);
+    } finally {
+      synchronized (this) {
+        catchingUp = false;
+      }
+    }
+  }
+
+  /**
+   * Number of builds recorded.
+   */
+  public synchronized int getBuilds() {
+    return builds.size();
+  }
+
+  /**
+   * Number of distinct paths recorded.
+   */
+  public synchronized int getPaths() {
+    return paths.size();
+  }
+
+  /**
+   * Number of revisions recorded over all builds.
+   */
+  public synchronized long getRevisions() {
+    return revisions;
+  }
+
+  /**
+   * Records the revisions in a build's changelog, unless the build is
+   * already recorded. The changelog is read before the history is locked.
+   */
+  void add(int build, File changelogFile) throws IOException {
+    synchronized (this) {
+      if (builds.contains(build))
+        return;
+    }
+
+    List<String[]> entries = new ArrayList<String[]>();
+    if (changelogFile.exists()) {
+      SurroundSCMChangeLogReader reader = SurroundSCMChangeLogParser.openReader(changelogFile, true);
+      try {
+        while (reader.next()) {
+          String path = reader.get(SurroundSCMChangeLogParser.PATH).concat("/").concat(reader.get(SurroundSCMChangeLogParser.NAME));
+          entries.add(new String[] { path, reader.get(SurroundSCMChangeLogParser.VERSION),
+                                       reader.get(SurroundSCMChangeLogParser.ACTION), reader.get(SurroundSCMChangeLogParser.USER) });
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    record(build, entries);
+  }
+
+  private synchronized void record(int build, List<String[]> entries) throws IOException {
+    // another thread may have recorded it while the changelog was read
+    if (builds.contains(build))
+      return;
+
+    int firstNewString = strings.size();
+    try {
+      List<int[]> added = new ArrayList<int[]>(entries.size());
+      for (String[] revision : entries)
+        added.add(new int[] { intern(revision[0]), intern(revision[1]), intern(revision[2]), intern(revision[3]) });
+      append(build, added, firstNewString);
+    } catch (IOException e) {
+      // forget the strings that did not make it into the file
+      while (strings.size() > firstNewString)
+        stringIds.remove(strings.remove(strings.size() - 1));
+      throw e;
+    }
+  }
+
+  private void append(int build, List<int[]> added, int firstNewString) throws IOException {
+    appendTo(file, build, added, firstNewString);
+  }
+
+  private void appendTo(File target, int build, List<int[]> added, int firstNewString) throws IOException {
+    ByteArrayOutputStream block = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(block);
+    out.writeInt(build);
+    out.writeInt(added.size());
+    int written = firstNewString;
+    for (int[] revision : added) {
+      for (int id : revision) {
+        if (id >= written) {
+          // first use in the file; ids are handed out in order of first use
+          writeVarInt(out, 0);
+          out.writeUTF(strings.get(id));
+          written++;
+        } else {
+          writeVarInt(out, id + 1);
+        }
+      }
+    }
+    out.flush();
+
+    boolean created = !target.exists();
+    long length = target.length();
+    OutputStream os = new FileOutputStream(target, true);
+    boolean appended = false;
+    try {
+      if (created) {
+        DataOutputStream header = new DataOutputStream(os);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.flush();
+      }
+      block.writeTo(os);
+      os.close();
+      appended = true;
+    } finally {
+      if (!appended) {
+        // do not leave half a block for the next one to be appended to
+        os.close();
+        truncate(target, length);
+      }
+    }
+
+    for (int[] revision : added)
+      post(build, revision[0], revision[1], revision[2], revision[3]);
+    builds.add(build);
+  }
+
+  /**
+   * Forgets the builds that are not among the given ones. The file is
+   * written again without them, with a string table of only the strings
+   * still in use, and replaces the old one once complete.
+   */
+  private synchronized void prune(Set<Integer> existing) throws IOException {
+    SortedMap<Integer, List<int[]>> kept = new TreeMap<Integer, List<int[]>>();
+    for (Integer build : builds) {
+      if (existing.contains(build))
+        kept.put(build, new ArrayList<int[]>());
+    }
+    if (kept.size() == builds.size())
+      return;
+
+    for (Map.Entry<String, Postings> e : paths.entrySet()) {
+      int path = stringIds.get(e.getKey());
+      Postings postings = e.getValue();
+      for (int i = 0; i < postings.size; i += 4) {
+        List<int[]> block = kept.get(postings.data[i]);
+        if (block != null)
+          block.add(new int[] { path, postings.data[i + 1], postings.data[i + 2], postings.data[i + 3] });
+      }
+    }
+    LOGGER.info("Dropping " + (builds.size() - kept.size()) + " deleted build(s) from " + file);
+
+    List<String> oldStrings = new ArrayList<String>(strings);
+    File tmp = new File(file.getPath() + ".tmp");
+    strings.clear();
+    stringIds.clear();
+    paths.clear();
+    builds.clear();
+    revisions = 0;
+    tmp.delete();
+    try {
+      for (Map.Entry<Integer, List<int[]>> e : kept.entrySet()) {
+        int firstNewString = strings.size();
+        List<int[]> block = new ArrayList<int[]>(e.getValue().size());
+        for (int[] revision : e.getValue())
+          block.add(new int[] { intern(oldStrings.get(revision[0])), intern(oldStrings.get(revision[1])),
+                                intern(oldStrings.get(revision[2])), intern(oldStrings.get(revision[3])) });
+        appendTo(tmp, e.getKey(), block, firstNewString);
+      }
+    } catch (IOException ex) {
+      tmp.delete();
+      // the file on disk is still complete: go back to it
+      strings.clear();
+      stringIds.clear();
+      paths.clear();
+      builds.clear();
+      revisions = 0;
+      read();
+      throw ex;
+    }
+    if (!tmp.exists())
+      file.delete();
+    else if (!file.delete() || !tmp.renameTo(file))
+      throw new IOException("Failed to replace " + file);
+  }
+
+  /**
+   * The revisions of one path, oldest build first.
+   */
+  public synchronized List<Revision> getHistory(String path) {
+    List<Revision> history = new ArrayList<Revision>();
+    Postings postings = paths.get(path);
+    if (postings != null)
+      collect(path, postings, history);
+    Collections.sort(history, BY_BUILD);
+    return history;
+  }
+
+  /**
+   * The revisions of every path below a directory, oldest build first; only
+   * the <tt>limit</tt> most recent if there are more.
+   */
+  public synchronized List<Revision> getHistoryBelow(String directory, int limit) {
+    String prefix = directory.endsWith("/") ? directory : directory.concat("/");
+    SortedMap<String, Postings> below = paths.subMap(prefix, prefix.concat("\uffff"));
+    List<Revision> history = new ArrayList<Revision>();
+    for (Map.Entry<String, Postings> e : below.entrySet())
+      collect(e.getKey(), e.getValue(), history);
+    Collections.sort(history, BY_BUILD);
+    return history.size() > limit ? new ArrayList<Revision>(history.subList(history.size() - limit, history.size())) : history;
+  }
+
+  /**
+   * The first build that included the given version of a path, or, if no
+   * build recorded that exact version, the first that included a later one.
+   *
+   * @return null if no build did.
+   */
+  public synchronized Revision getFirstBuildWith(String path, String version) {
+    Revision later = null;
+    long wanted = parseVersion(version);
+    for (Revision r : getHistory(path)) {
+      if (r.getVersion().equals(version))
+        return r;
+      if (later == null && wanted >= 0 && parseVersion(r.getVersion()) > wanted)
+        later = r;
+    }
+    return later;
+  }
+
+  private void collect(String path, Postings postings, List<Revision> into) {
+    for (int i = 0; i < postings.size; i += 4)
+      into.add(new Revision(path, postings.data[i], strings.get(postings.data[i + 1]),
+                            strings.get(postings.data[i + 2]), strings.get(postings.data[i + 3])));
+  }
+
+  private void post(int build, int path, int version, int action, int user) {
+    String key = strings.get(path);
+    Postings postings = paths.get(key);
+    if (postings == null) {
+      postings = new Postings();
+      paths.put(key, postings);
+    }
+    postings.add(build, version, action, user);
+    revisions++;
+  }
+
+  private int intern(String s) {
+    Integer id = stringIds.get(s);
+    if (id == null) {
+      id = strings.size();
+      strings.add(s);
+      stringIds.put(s, id);
+    }
+    return id;
+  }
+
+  private void read() throws IOException {
+    if (!file.exists())
+      return;
+    CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+    DataInputStream in = new DataInputStream(counter);
+    long complete = 0;
+    try {
+      // a file of another version is rebuilt from the changelogs
+      if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+        complete = counter.getCount();
+        while (true) {
+          int build;
+          try {
+            build = in.readInt();
+          } catch (EOFException e) {
+            if (counter.getCount() == complete)
+              return; // the end of the last block
+            break; // part of a build number
+          }
+          try {
+            readBlock(build, in);
+          } catch (EOFException e) {
+            break;
+          } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unreadable build record in " + file, e);
+            break;
+          }
+          complete = counter.getCount();
+        }
+      }
+    } catch (EOFException e) {
+      complete = 0;
+    } finally {
+      in.close();
+    }
+
+    // a block cut short by a crash or damaged: drop it and everything after
+    // it and start over from what is good, so the string table matches the
+    // file again
+    LOGGER.warning("Truncating " + file + " to its last good build");
+    strings.clear();
+    stringIds.clear();
+    paths.clear();
+    builds.clear();
+    revisions = 0;
+    if (complete == 0) {
+      file.delete();
+      return;
+    }
+    truncate(file, complete);
+    read();
+  }
+
+  private static void truncate(File file, long length) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(length);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private void readBlock(int build, DataInputStream in) throws IOException {
+    int count = in.readInt();
+    int[][] block = new int[count][4];
+    for (int r = 0; r < count; r++) {
+      for (int f = 0; f < 4; f++) {
+        int ref = readVarInt(in);
+        if (ref == 0)
+          block[r][f] = intern(in.readUTF());
+        else if (ref - 1 < strings.size())
+          block[r][f] = ref - 1;
+        else
+          throw new IOException("Bad string reference in " + file);
+      }
+    }
+    for (int[] revision : block)
+      post(build, revision[0], revision[1], revision[2], revision[3]);
+    builds.add(build);
+  }
+
+  /**
+   * Counts the bytes read, to find where the last complete block ends.
+   */
+  private static final class CountingInputStream extends FilterInputStream {
+    private long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0)
+        count++;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0)
+        count += n;
+      return n;
+    }
+  }
+
+  private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVarInt(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new IOException("Malformed number");
+  }
+
+  private static long parseVersion(String version) {
+    try {
+      return Long.parseLong(version.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package hudson.scm;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.TransientProjectActionFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Answers which builds of a job included the revisions of a path, from the
+ * job's {@link SurroundSCMFileHistory}. The <tt>path</tt> parameter names a
+ * file or a directory, relative to the server root like the paths in the
+ * changes; with a <tt>version</tt> the first build that included that
+ * version of the file is looked up. Also available through the remote API.
+ */
+@ExportedBean
+public final class SurroundSCMFileHistoryAction implements Action {
+
+  private static final Logger LOGGER = Logger.getLogger(SurroundSCMFileHistoryAction.class.getName());
+
+  // most revisions one query returns
+  static final int MAX_RESULTS = 1000;
+
+  private final AbstractProject<?, ?> project;
+
+  SurroundSCMFileHistoryAction(AbstractProject<?, ?> project) {
+    this.project = project;
+  }
+
+  public AbstractProject<?, ?> getProject() {
+    return project;
+  }
+
+  public String getIconFileName() {
+    return "search.gif";
+  }
+
+  public String getDisplayName() {
+    return "Surround SCM File History";
+  }
+
+  public String getUrlName() {
+    return "sscmHistory";
+  }
+
+  public Api getApi() {
+    return new Api(this);
+  }
+
+  /**
+   * The job's history, including builds made before it was kept.
+   *
+   * @return null if it could not be read.
+   */
+  public SurroundSCMFileHistory getHistory() {
+    try {
+      SurroundSCMFileHistory history = SurroundSCM.DESCRIPTOR.getFileHistory(project);
+      history.catchUp(project);
+      return history;
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to read the file history of " + project.getFullName(), e);
+      return null;
+    }
+  }
+
+  @Exported
+  public String getPath() {
+    return parameter("path");
+  }
+
+  @Exported
+  public String getVersion() {
+    return parameter("version");
+  }
+
+  /**
+   * The revisions of the requested path, oldest build first; only the first
+   * build with the requested version if one is given. A path no file
+   * revision was recorded for is taken as a directory.
+   */
+  @Exported(inline = true)
+  public List<SurroundSCMFileHistory.Revision> getRevisions() {
+    String path = getPath();
+    SurroundSCMFileHistory history = path == null ? null : getHistory();
+    if (history == null)
+      return Collections.emptyList();
+
+    String version = getVersion();
+    if (version != null) {
+      SurroundSCMFileHistory.Revision first = history.getFirstBuildWith(path, version);
+      return first == null ? Collections.<SurroundSCMFileHistory.Revision>emptyList() : Collections.singletonList(first);
+    }
+    List<SurroundSCMFileHistory.Revision> revisions = history.getHistory(path);
+    if (revisions.isEmpty())
+      return history.getHistoryBelow(path, MAX_RESULTS);
+    return revisions.size() > MAX_RESULTS ? revisions.subList(revisions.size() - MAX_RESULTS, revisions.size()) : revisions;
+  }
+
+  private static String parameter(String name) {
+    StaplerRequest req = Stapler.getCurrentRequest();
+    String value = req == null ? null : req.getParameter(name);
+    if (value == null)
+      return null;
+    value = value.trim();
+    while (value.endsWith("/"))
+      value = value.substring(0, value.length() - 1);
+    return value.length() == 0 ? null : value;
+  }
+
+  /**
+   * Adds the action to jobs that use Surround SCM.
+   */
+  @Extension
+  public static final class Factory extends TransientProjectActionFactory {
+    @Override
+    public Collection<? extends Action> createFor(AbstractProject target) {
+      if (!(target.getScm() instanceof SurroundSCM))
+        return Collections.emptyList();
+      return Collections.singletonList(new SurroundSCMFileHistoryAction(target));
+    }
+  }
+}
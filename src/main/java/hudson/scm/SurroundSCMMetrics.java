@@ -0,0 +1,266 @@
+package hudson.scm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Timings of the sscm calls made against each server. The last
+ * {@link #WINDOW} calls per server are kept and summarized as a histogram of
+ * their wall times, so a server that slows down shows up without the numbers
+ * being diluted by its whole history.
+ */
+public final class SurroundSCMMetrics {
+
+  static final int WINDOW = 500;
+
+  // upper bounds of the histogram buckets; the last bucket is open ended
+  static final long[] BUCKET_MILLIS = { 100, 1000, 10 * 1000, 60 * 1000, 10 * 60 * 1000 };
+
+  /**
+   * One sscm call.
+   */
+  @ExportedBean(defaultVisibility = 2)
+  public static final class Invocation {
+    private final String command;
+    private final String server;
+    private final long started;
+    private final long queueWaitMillis;
+    private final long wallMillis;
+    private final int exitCode;
+    private final long bytes;
+    private final long lines;
+
+    Invocation(String command, String server, long started, long queueWaitMillis, long wallMillis,
+               int exitCode, long bytes, long lines) {
+      this.command = command;
+      this.server = server;
+      this.started = started;
+      this.queueWaitMillis = queueWaitMillis;
+      this.wallMillis = wallMillis;
+      this.exitCode = exitCode;
+      this.bytes = bytes;
+      this.lines = lines;
+    }
+
+    /**
+     * The sscm sub command, such as <tt>get</tt> or <tt>cc</tt>.
+     */
+    @Exported
+    public String getCommand() {
+      return command;
+    }
+
+    @Exported
+    public String getServer() {
+      return server;
+    }
+
+    @Exported
+    public long getStarted() {
+      return started;
+    }
+
+    /**
+     * Time spent waiting for a free slot on the server before sscm started.
+     */
+    @Exported
+    public long getQueueWaitMillis() {
+      return queueWaitMillis;
+    }
+
+    /**
+     * Time from starting sscm until it exited, not counting the queue wait.
+     */
+    @Exported
+    public long getWallMillis() {
+      return wallMillis;
+    }
+
+    /**
+     * Exit code of sscm, -1 if it could not be run.
+     */
+    @Exported
+    public int getExitCode() {
+      return exitCode;
+    }
+
+    /**
+     * Bytes sscm wrote to its standard output.
+     */
+    @Exported
+    public long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * Lines sscm wrote to its standard output.
+     */
+    @Exported
+    public long getLines() {
+      return lines;
+    }
+
+    /**
+     * Output throughput in bytes per second.
+     */
+    public long getBytesPerSecond() {
+      return wallMillis == 0 ? bytes * 1000 : bytes * 1000 / wallMillis;
+    }
+
+    @Override
+    public String toString() {
+      return "sscm " + command + " on " + server + ": " + wallMillis + "ms, exit " + exitCode + ", " + bytes
+             + " bytes, " + lines + " lines, waited " + queueWaitMillis + "ms";
+    }
+  }
+
+  /**
+   * One bucket of a histogram, shown on the global configuration page.
+   */
+  public static final class Bucket {
+    private final String label;
+    private final int count;
+
+    Bucket(String label, int count) {
+      this.label = label;
+      this.count = count;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+
+    public int getCount() {
+      return count;
+    }
+  }
+
+  /**
+   * The recent calls to one server.
+   */
+  public static final class ServerHistogram {
+    private final String server;
+    private final Invocation[] recent = new Invocation[WINDOW];
+    private int next;
+    private int size;
+    private long total;
+
+    ServerHistogram(String server) {
+      this.server = server;
+    }
+
+    public String getServer() {
+      return server;
+    }
+
+    /**
+     * Number of calls ever recorded.
+     */
+    public synchronized long getTotal() {
+      return total;
+    }
+
+    /**
+     * Number of calls in the window.
+     */
+    public synchronized int getSamples() {
+      return size;
+    }
+
+    public synchronized List<Bucket> getBuckets() {
+      int[] counts = new int[BUCKET_MILLIS.length + 1];
+      for (int i = 0; i < size; i++) {
+        int b = 0;
+        while (b < BUCKET_MILLIS.length && recent[i].getWallMillis() >= BUCKET_MILLIS[b])
+          b++;
+        counts[b]++;
+      }
+      List<Bucket> buckets = new ArrayList<Bucket>(counts.length);
+      for (int b = 0; b < counts.length; b++)
+        buckets.add(new Bucket(b < BUCKET_MILLIS.length ? "< " + format(BUCKET_MILLIS[b])
+                                                        : ">= " + format(BUCKET_MILLIS[b - 1]), counts[b]));
+      return buckets;
+    }
+
+    public synchronized long getAverageMillis() {
+      long sum = 0;
+      for (int i = 0; i < size; i++)
+        sum += recent[i].getWallMillis();
+      return size == 0 ? 0 : sum / size;
+    }
+
+    public synchronized long getMaxMillis() {
+      long max = 0;
+      for (int i = 0; i < size; i++)
+        max = Math.max(max, recent[i].getWallMillis());
+      return max;
+    }
+
+    public synchronized long getAverageQueueWaitMillis() {
+      long sum = 0;
+      for (int i = 0; i < size; i++)
+        sum += recent[i].getQueueWaitMillis();
+      return size == 0 ? 0 : sum / size;
+    }
+
+    /**
+     * Output throughput over the window in bytes per second.
+     */
+    public synchronized long getBytesPerSecond() {
+      long bytes = 0;
+      long millis = 0;
+      for (int i = 0; i < size; i++) {
+        bytes += recent[i].getBytes();
+        millis += recent[i].getWallMillis();
+      }
+      return millis == 0 ? 0 : bytes * 1000 / millis;
+    }
+
+    public synchronized int getFailures() {
+      int failures = 0;
+      for (int i = 0; i < size; i++) {
+        if (recent[i].getExitCode() != 0)
+          failures++;
+      }
+      return failures;
+    }
+
+    synchronized void add(Invocation invocation) {
+      recent[next] = invocation;
+      next = (next + 1) % WINDOW;
+      size = Math.min(size + 1, WINDOW);
+      total++;
+    }
+
+    private static String format(long millis) {
+      if (millis >= 60 * 1000)
+        return millis / (60 * 1000) + "min";
+      if (millis >= 1000)
+        return millis / 1000 + "s";
+      return millis + "ms";
+    }
+  }
+
+  private final Map<String, ServerHistogram> servers = new TreeMap<String, ServerHistogram>();
+
+  public synchronized List<ServerHistogram> getServers() {
+    return new ArrayList<ServerHistogram>(servers.values());
+  }
+
+  void record(Invocation invocation) {
+    ServerHistogram histogram;
+    synchronized (this) {
+      histogram = servers.get(invocation.getServer());
+      if (histogram == null) {
+        histogram = new ServerHistogram(invocation.getServer());
+        servers.put(invocation.getServer(), histogram);
+      }
+    }
+    histogram.add(invocation);
+  }
+}
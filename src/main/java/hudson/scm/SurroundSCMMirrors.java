@@ -0,0 +1,181 @@
+package hudson.scm;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Per node copies of a branch that workspaces on that node are filled from,
+ * so the executors of a node share one download instead of each fetching the
+ * branch from the server. A mirror is updated incrementally under its write
+ * lock and copied into workspaces under its read lock; all checkouts are
+ * coordinated from the master, so the locks live here rather than on the
+ * nodes. The least recently used mirrors of a node are deleted once it has
+ * more than the configured number.
+ * <p>
+ * Workspaces filled from a mirror keep a manifest of the versions they were
+ * given, like the mirror does, so later builds only copy what changed.
+ */
+public final class SurroundSCMMirrors {
+
+  static final String MIRRORS_DIR = "sscm-mirrors";
+  // touched whenever a mirror is used, to find the least recently used ones
+  static final String USED_MARKER = ".sscm-mirror-used";
+
+  private final Map<String, ReentrantReadWriteLock> locks = new HashMap<String, ReentrantReadWriteLock>();
+
+  /**
+   * The directory below a node's root path that holds its mirrors.
+   */
+  static FilePath mirrorsOf(FilePath nodeRoot) {
+    return nodeRoot.child(MIRRORS_DIR);
+  }
+
+  /**
+   * The name of the mirror of the given source on any node.
+   */
+  static String nameOf(String sourceKey) {
+    return Util.getDigestOf(sourceKey);
+  }
+
+  synchronized ReentrantReadWriteLock lockFor(String node, String name) {
+    String key = node + '/' + name;
+    ReentrantReadWriteLock lock = locks.get(key);
+    if (lock == null) {
+      lock = new ReentrantReadWriteLock(true);
+      locks.put(key, lock);
+    }
+    return lock;
+  }
+
+  /**
+   * Copies the given files from a mirror into a workspace on the same node,
+   * and deletes the others given from the workspace, in one call to the
+   * node. Files the mirror does not hold are skipped.
+   *
+   * @return the number of files copied.
+   */
+  static int sync(FilePath mirror, FilePath workspace, List<String> copy, List<String> delete)
+        throws IOException, InterruptedException {
+    return mirror.act(new Sync(copy, delete, workspace.getRemote()));
+  }
+
+  private static final class Sync implements FilePath.FileCallable<Integer> {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> copy;
+    private final List<String> delete;
+    private final String workspace;
+
+    Sync(List<String> copy, List<String> delete, String workspace) {
+      this.copy = copy;
+      this.delete = delete;
+      this.workspace = workspace;
+    }
+
+    public Integer invoke(File mirror, VirtualChannel channel) throws IOException {
+      File target = new File(workspace);
+      for (String path : delete) {
+        File file = new File(target, path);
+        if (file.isDirectory())
+          Util.deleteRecursive(file);
+        else if (!file.delete() && file.exists())
+          throw new IOException("Unable to delete " + file);
+        // directories removed from the repository go with their last file
+        for (File dir = file.getParentFile(); !dir.equals(target) && dir.delete(); dir = dir.getParentFile())
+          ;
+      }
+
+      int copied = 0;
+      byte[] buf = new byte[64 * 1024];
+      for (String path : copy) {
+        File from = new File(mirror, path);
+        if (!from.isFile())
+          continue;
+        File to = new File(target, path);
+        to.getParentFile().mkdirs();
+        InputStream in = new FileInputStream(from);
+        try {
+          OutputStream out = new FileOutputStream(to);
+          try {
+            int n;
+            while ((n = in.read(buf)) > 0)
+              out.write(buf, 0, n);
+          } finally {
+            out.close();
+          }
+        } finally {
+          in.close();
+        }
+        // the same time stamp a full copy gives it
+        to.setLastModified(from.lastModified());
+        if (from.canExecute())
+          to.setExecutable(true);
+        copied++;
+      }
+      return copied;
+    }
+  }
+
+  /**
+   * Records that a mirror was just used.
+   */
+  static void touch(FilePath mirror) throws IOException, InterruptedException {
+    mirror.child(USED_MARKER).touch(System.currentTimeMillis());
+  }
+
+  /**
+   * Deletes the least recently used mirrors of a node until at most
+   * <tt>max</tt> are left. Mirrors in use are skipped.
+   */
+  void evict(String node, FilePath mirrors, int max, TaskListener listener) throws IOException, InterruptedException {
+    if (max <= 0 || !mirrors.exists())
+      return;
+    List<FilePath> dirs = mirrors.listDirectories();
+    if (dirs == null || dirs.size() <= max)
+      return;
+
+    final Map<FilePath, Long> used = new HashMap<FilePath, Long>();
+    for (FilePath dir : dirs) {
+      FilePath marker = dir.child(USED_MARKER);
+      used.put(dir, marker.exists() ? marker.lastModified() : dir.lastModified());
+    }
+    List<FilePath> oldestFirst = new ArrayList<FilePath>(dirs);
+    Collections.sort(oldestFirst, new Comparator<FilePath>() {
+      public int compare(FilePath a, FilePath b) {
+        return used.get(a).compareTo(used.get(b));
+      }
+    });
+
+    int left = oldestFirst.size();
+    for (FilePath dir : oldestFirst) {
+      if (left <= max)
+        break;
+      ReentrantReadWriteLock lock = lockFor(node, dir.getName());
+      if (!lock.writeLock().tryLock())
+        continue;
+      try {
+        listener.getLogger().println("Deleting least recently used Surround SCM mirror " + dir.getRemote());
+        dir.deleteRecursive();
+        left--;
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+}
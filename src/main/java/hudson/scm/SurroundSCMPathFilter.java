@@ -0,0 +1,164 @@
+package hudson.scm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Include and exclude patterns limiting which parts of the repository a job
+ * fetches and reacts to. Patterns are relative to the configured repository
+ * and use Ant syntax: <tt>*</tt> and <tt>?</tt> match within one path
+ * segment, <tt>**</tt> matches any number of segments. A pattern that matches
+ * a directory also matches everything below it, so <tt>docs</tt> and
+ * <tt>docs/**</tt> are the same.
+ */
+final class SurroundSCMPathFilter implements SurroundSCMRevisionState.ChangeFilter {
+
+  private final String repository;
+  private final List<String> includes;
+  private final Pattern[] includePatterns;
+  private final Pattern[] excludePatterns;
+
+  SurroundSCMPathFilter(String repository, String includes, String excludes) {
+    this.repository = repository;
+    this.includes = split(includes);
+    this.includePatterns = compile(this.includes);
+    this.excludePatterns = compile(split(excludes));
+  }
+
+  boolean isEmpty() {
+    return includePatterns.length == 0 && excludePatterns.length == 0;
+  }
+
+  boolean hasIncludes() {
+    return includePatterns.length > 0;
+  }
+
+  /**
+   * Whether a file reported by sscm, given by its repository path and name,
+   * passes the filter.
+   */
+  public boolean accepts(String repositoryPath, String name) {
+    if (isEmpty())
+      return true;
+    String dir;
+    if (repositoryPath.equals(repository))
+      dir = "";
+    else if (repositoryPath.startsWith(repository.concat("/")))
+      dir = repositoryPath.substring(repository.length() + 1);
+    else
+      return !hasIncludes(); // not below the repository, so no pattern can name it
+    return accepts(dir.length() == 0 ? name : dir.concat("/").concat(name));
+  }
+
+  /**
+   * Whether a path relative to the repository passes the filter.
+   */
+  boolean accepts(String path) {
+    if (includePatterns.length > 0 && !matches(includePatterns, path))
+      return false;
+    return !matches(excludePatterns, path);
+  }
+
+  /**
+   * The directories that hold everything the include patterns can match, with
+   * directories below another one left out; the part of each pattern before
+   * its first wildcard. A pattern without a wildcard may name a file, so its
+   * parent directory is used instead; write <tt>docs/**</tt> rather than
+   * <tt>docs</tt> to fetch just that directory.
+   *
+   * @return null if the whole repository has to be fetched.
+   */
+  List<String> getIncludeRoots() {
+    if (includes.isEmpty())
+      return null;
+    List<String> roots = new ArrayList<String>();
+    for (String include : includes) {
+      String[] segments = include.split("/");
+      // only segments followed by another one are known to be directories
+      StringBuilder root = new StringBuilder();
+      for (int i = 0; i < segments.length - 1; i++) {
+        if (segments[i].indexOf('*') >= 0 || segments[i].indexOf('?') >= 0)
+          break;
+        if (root.length() > 0)
+          root.append('/');
+        root.append(segments[i]);
+      }
+      if (root.length() == 0)
+        return null;
+      roots.add(root.toString());
+    }
+
+    List<String> outermost = new ArrayList<String>();
+    for (String root : roots) {
+      boolean nested = false;
+      for (String other : roots) {
+        if (!other.equals(root) && root.startsWith(other.concat("/")))
+          nested = true;
+      }
+      if (!nested && !outermost.contains(root))
+        outermost.add(root);
+    }
+    return outermost;
+  }
+
+  private static boolean matches(Pattern[] patterns, String path) {
+    for (Pattern p : patterns) {
+      // a directory pattern also covers what is below the directory
+      for (int end = path.length(); end > 0; end = path.lastIndexOf('/', end - 1)) {
+        if (p.matcher(path.substring(0, end)).matches())
+          return true;
+      }
+    }
+    return false;
+  }
+
+  private static List<String> split(String patterns) {
+    List<String> list = new ArrayList<String>();
+    if (patterns == null)
+      return list;
+    for (String p : patterns.split("[,\\n]")) {
+      p = p.trim().replace('\\', '/');
+      while (p.startsWith("/"))
+        p = p.substring(1);
+      while (p.endsWith("/"))
+        p = p.substring(0, p.length() - 1);
+      if (p.length() > 0)
+        list.add(p);
+    }
+    return list;
+  }
+
+  private static Pattern[] compile(List<String> patterns) {
+    Pattern[] compiled = new Pattern[patterns.size()];
+    for (int i = 0; i < compiled.length; i++)
+      compiled[i] = Pattern.compile(toRegex(patterns.get(i)));
+    return compiled;
+  }
+
+  private static String toRegex(String pattern) {
+    StringBuilder regex = new StringBuilder();
+    String[] segments = pattern.split("/");
+    for (int i = 0; i < segments.length; i++) {
+      String segment = segments[i];
+      boolean last = i == segments.length - 1;
+      if (segment.equals("**")) {
+        // any number of whole segments, including none
+        regex.append(last ? ".*" : "(?:[^/]*/)*");
+        continue;
+      }
+      for (int c = 0; c < segment.length(); c++) {
+        char ch = segment.charAt(c);
+        if (ch == '*')
+          regex.append("[^/]*");
+        else if (ch == '?')
+          regex.append("[^/]");
+        else
+          regex.append(Pattern.quote(String.valueOf(ch)));
+      }
+      if (!last)
+        regex.append('/');
+    }
+    return regex.toString();
+  }
+}
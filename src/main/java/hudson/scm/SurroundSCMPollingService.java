@@ -0,0 +1,453 @@
+package hudson.scm;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.TaskListener;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Answers the polls of all jobs watching the same server, branch and
+ * repository from one change query. The first job to poll a source queries
+ * it from the oldest baseline any job polling that source recently asked
+ * for; the result is kept for a short time and every other job counts the
+ * changes newer than its own baseline in it. The load on the Surround server
+ * therefore grows with the number of distinct sources, not with the number
+ * of jobs. Snapshots past their time to live and sources no job polled for
+ * {@link #BASELINE_EXPIRY_MILLIS} are dropped whenever a job polls.
+ */
+public final class SurroundSCMPollingService {
+
+  // a job that has not polled a source for this long no longer widens its queries
+  static final long BASELINE_EXPIRY_MILLIS = 60 * 60 * 1000L;
+
+  /**
+   * The changes of one source in (<tt>from</tt>, <tt>to</tt>]. If the output
+   * was small enough to keep, it can also answer for any later baseline.
+   */
+  public static final class Snapshot {
+    private final Date from;
+    private final Date to;
+    private final long fetched;
+    private final int total;
+    // null when the output was too large to keep
+    private final byte[] output;
+    private final long[] lineStarts;
+    private final long[] times;
+    // repository path and name of the file of each line
+    private final String[] paths;
+    private final String[] names;
+    private final String[] versions;
+
+    Snapshot(Date from, Date to, int total, byte[] output) throws IOException {
+      this.from = new Date(from.getTime());
+      this.to = new Date(to.getTime());
+      this.fetched = System.currentTimeMillis();
+      this.total = total;
+
+      long[] starts = null;
+      long[] lineTimes = null;
+      String[] linePaths = null;
+      String[] lineNames = null;
+      String[] lineVersions = null;
+      if (output != null) {
+        starts = new long[16];
+        lineTimes = new long[16];
+        linePaths = new String[16];
+        lineNames = new String[16];
+        lineVersions = new String[16];
+        int n = 0;
+        SurroundSCMChangeLogIndex.DateParser dates = new SurroundSCMChangeLogIndex.DateParser();
+        SurroundSCMChangeLogTokenizer tokenizer = new SurroundSCMChangeLogTokenizer(new ByteArrayInputStream(output));
+        while (tokenizer.next()) {
+          long time = dates.parse(tokenizer.get(SurroundSCMChangeLogParser.DATE));
+          if (time < 0) {
+            // cannot tell which baselines this change is newer than
+            starts = null;
+            break;
+          }
+          if (n == starts.length) {
+            starts = grow(starts);
+            lineTimes = grow(lineTimes);
+            linePaths = grow(linePaths);
+            lineNames = grow(lineNames);
+            lineVersions = grow(lineVersions);
+          }
+          starts[n] = tokenizer.getOffset();
+          linePaths[n] = tokenizer.get(SurroundSCMChangeLogParser.PATH);
+          lineNames[n] = tokenizer.get(SurroundSCMChangeLogParser.NAME);
+          lineVersions[n] = tokenizer.get(SurroundSCMChangeLogParser.VERSION);
+          lineTimes[n++] = time;
+        }
+        if (starts != null && tokenizer.getMalformedLines() > 0)
+          starts = null;
+        if (starts != null) {
+          starts = trim(starts, n);
+          lineTimes = trim(lineTimes, n);
+          linePaths = trim(linePaths, n);
+          lineNames = trim(lineNames, n);
+          lineVersions = trim(lineVersions, n);
+        }
+      }
+      this.output = starts == null ? null : output;
+      this.lineStarts = starts;
+      this.times = starts == null ? null : lineTimes;
+      this.paths = starts == null ? null : linePaths;
+      this.names = starts == null ? null : lineNames;
+      this.versions = starts == null ? null : lineVersions;
+    }
+
+    public Date getFrom() {
+      return new Date(from.getTime());
+    }
+
+    public Date getTo() {
+      return new Date(to.getTime());
+    }
+
+    /**
+     * Whether the output was kept, and with it the file, version and time of
+     * each change.
+     */
+    boolean hasOutput() {
+      return output != null;
+    }
+
+    /**
+     * Number of changes listed, only known when the output was kept.
+     */
+    int size() {
+      return times.length;
+    }
+
+    long getTime(int i) {
+      return times[i];
+    }
+
+    String getPath(int i) {
+      return paths[i];
+    }
+
+    String getName(int i) {
+      return names[i];
+    }
+
+    /**
+     * Identifies the i-th change, a revision of one file.
+     */
+    String getKey(int i) {
+      return paths[i] + '/' + names[i] + '#' + versions[i];
+    }
+
+    boolean isFresh(long ttlMillis) {
+      return System.currentTimeMillis() - fetched <= ttlMillis;
+    }
+
+    /**
+     * Whether this snapshot can tell the changes since the given baseline.
+     */
+    boolean covers(Date baseline) {
+      if (from.getTime() == baseline.getTime())
+        return true;
+      return output != null && from.getTime() <= baseline.getTime() && baseline.getTime() <= to.getTime();
+    }
+
+    /**
+     * Number of changes since the given baseline, which must be covered.
+     */
+    int countSince(Date baseline) {
+      if (from.getTime() == baseline.getTime())
+        return total;
+      int count = 0;
+      long since = toSeconds(baseline);
+      for (long time : times) {
+        if (time >= since)
+          count++;
+      }
+      return count;
+    }
+
+    /**
+     * Number of changes since the given baseline, which must be covered, to
+     * files the filter accepts.
+     *
+     * @return the count, or -1 if the output was not kept and the files are
+     *         therefore not known.
+     */
+    int countSince(Date baseline, SurroundSCMPathFilter filter) {
+      if (output == null)
+        return -1;
+      int count = 0;
+      long since = from.getTime() == baseline.getTime() ? Long.MIN_VALUE : toSeconds(baseline);
+      for (int i = 0; i < times.length; i++) {
+        if (times[i] >= since && filter.accepts(paths[i], names[i]))
+          count++;
+      }
+      return count;
+    }
+
+    /**
+     * The <tt>sscm cc</tt> output a query from the given baseline would have
+     * produced, or null if the output was not kept.
+     */
+    byte[] outputSince(Date baseline) {
+      if (output == null)
+        return null;
+      if (from.getTime() == baseline.getTime())
+        return output;
+
+      long since = toSeconds(baseline);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] header = ("total-" + countSince(baseline) + "\n").getBytes();
+      out.write(header, 0, header.length);
+      for (int i = 0; i < times.length; i++) {
+        if (times[i] < since)
+          continue;
+        int start = (int) lineStarts[i];
+        int end = start;
+        while (end < output.length && output[end++] != '\n')
+          ;
+        out.write(output, start, end - start);
+      }
+      return out.toByteArray();
+    }
+
+    // sscm dates have a resolution of one second and the query range includes its lower bound
+    private static long toSeconds(Date date) {
+      return date.getTime() - date.getTime() % 1000;
+    }
+
+    private static long[] grow(long[] a) {
+      long[] bigger = new long[a.length * 2];
+      System.arraycopy(a, 0, bigger, 0, a.length);
+      return bigger;
+    }
+
+    private static String[] grow(String[] a) {
+      String[] bigger = new String[a.length * 2];
+      System.arraycopy(a, 0, bigger, 0, a.length);
+      return bigger;
+    }
+
+    private static String[] trim(String[] a, int n) {
+      String[] trimmed = new String[n];
+      System.arraycopy(a, 0, trimmed, 0, n);
+      return trimmed;
+    }
+
+    private static long[] trim(long[] a, int n) {
+      long[] trimmed = new long[n];
+      System.arraycopy(a, 0, trimmed, 0, n);
+      return trimmed;
+    }
+  }
+
+  private final Map<String, Snapshot> snapshots = new HashMap<String, Snapshot>();
+  // only held while some job is querying or waiting for the source
+  private final Map<String, SourceLock> locks = new HashMap<String, SourceLock>();
+  // source -> job -> the last baseline that job polled with
+  private final Map<String, Map<String, Baseline>> baselines = new HashMap<String, Map<String, Baseline>>();
+
+  /**
+   * A random delay a poll waits out before its first query to the server,
+   * so polls scheduled for the same instant reach the server spread out.
+   * Polls answered from a snapshot do not wait at all.
+   */
+  static final class Jitter {
+    private long millis;
+
+    Jitter(long millis) {
+      this.millis = millis;
+    }
+
+    void await() throws InterruptedException {
+      long m = millis;
+      millis = 0;
+      if (m > 0)
+        Thread.sleep(m);
+    }
+  }
+
+  private static final class SourceLock {
+    int users;
+  }
+
+  private static final class Baseline {
+    final Date date;
+    final long polled = System.currentTimeMillis();
+
+    Baseline(Date date) {
+      this.date = date;
+    }
+  }
+
+  /**
+   * Identifies what a job polls: jobs with the same key see the same changes.
+   */
+  static String keyOf(SurroundSCM scm) {
+    return keyOf(scm, scm.getBranch(), scm.getRepository());
+  }
+
+  /**
+   * Identifies a branch and repository on the server of a job, as seen by
+   * the job's user: what sscm lists depends on the user's rights, so jobs
+   * logging in differently never share results.
+   */
+  static String keyOf(SurroundSCM scm, String branch, String repository) {
+    SurroundSCMServerProfile connection = scm.getConnection();
+    String login = Util.getDigestOf(Util.fixNull(connection.getUserName()) + ':' + Util.fixNull(connection.getPassword()));
+    return connection.getServer() + ':' + connection.getServerPort() + '|' + connection.getRsaKeyPath() + '|' + login
+           + '|' + branch + '|' + repository;
+  }
+
+  /**
+   * Returns the changes of the given job's source since its baseline, either
+   * from a snapshot another job's poll left behind or by querying the
+   * server.
+   *
+   * @param keepOutput whether the caller needs the changes themselves rather
+   *        than only their count. They are kept anyway while other jobs poll
+   *        the same source, which may need them for their own baselines.
+   * @return the snapshot to read the changes from, which covers the baseline,
+   *         or null if the query failed.
+   */
+  Snapshot getChanges(SurroundSCM scm, String job, Date baseline, long ttlMillis, boolean keepOutput, Jitter jitter,
+                      Launcher launcher, FilePath workspace, TaskListener listener) throws IOException, InterruptedException {
+    return getChanges(scm, scm.getBranch(), scm.getRepository(), job, baseline, ttlMillis, keepOutput, jitter,
+                      launcher, workspace, listener);
+  }
+
+  /**
+   * Like {@link #getChanges(SurroundSCM, String, Date, long, boolean, Jitter, Launcher, FilePath, TaskListener)}
+   * for another branch and repository on the job's server.
+   */
+  Snapshot getChanges(SurroundSCM scm, String branch, String repository, String job, Date baseline, long ttlMillis,
+                      boolean keepOutput, Jitter jitter, Launcher launcher, FilePath workspace, TaskListener listener)
+        throws IOException, InterruptedException {
+    String key = keyOf(scm, branch, repository);
+    evictStale(ttlMillis);
+    Date from = registerBaseline(key, job, baseline);
+    keepOutput |= isShared(key);
+    if (jitter != null && getSnapshot(key, baseline, ttlMillis) == null)
+      jitter.await();
+
+    SourceLock lock = acquire(key);
+    try {
+      synchronized (lock) {
+        return getChanges(scm, branch, repository, key, baseline, from, ttlMillis, keepOutput, launcher, workspace, listener);
+      }
+    } finally {
+      release(key, lock);
+    }
+  }
+
+  private Snapshot getChanges(SurroundSCM scm, String branch, String repository, String key, Date baseline, Date from,
+                              long ttlMillis, boolean keepOutput, Launcher launcher, FilePath workspace,
+                              TaskListener listener) throws IOException, InterruptedException {
+    Snapshot snapshot = getSnapshot(key, baseline, ttlMillis);
+    if (snapshot != null) {
+      SimpleDateFormat formatter = new SimpleDateFormat(SurroundSCM.SURROUND_DATETIME_FORMAT_STR);
+      listener.getLogger().println("Using changes queried up to " + formatter.format(snapshot.getTo()) + " for the same server, branch and repository.");
+      return snapshot;
+    }
+
+    snapshot = scm.queryChanges(launcher, workspace, listener, branch, repository, from, new Date(), keepOutput);
+    if (snapshot == null)
+      return null;
+    if (!snapshot.covers(baseline)) {
+      // the merged range was too large to keep, ask again for this job only
+      snapshot = scm.queryChanges(launcher, workspace, listener, branch, repository, baseline, new Date(), keepOutput);
+      if (snapshot == null)
+        return null;
+    }
+    synchronized (this) {
+      snapshots.put(key, snapshot);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Whether other jobs recently polled the given source too.
+   */
+  private synchronized boolean isShared(String key) {
+    Map<String, Baseline> jobs = baselines.get(key);
+    return jobs != null && jobs.size() > 1;
+  }
+
+  /**
+   * The kept snapshot of a source if it can still answer a poll from the
+   * given baseline, otherwise null.
+   */
+  private synchronized Snapshot getSnapshot(String key, Date baseline, long ttlMillis) {
+    Snapshot snapshot = snapshots.get(key);
+    return snapshot != null && snapshot.isFresh(ttlMillis) && snapshot.covers(baseline) ? snapshot : null;
+  }
+
+  /**
+   * Records the baseline of a job and works out where a query serving every
+   * job that recently polled the same source has to start.
+   */
+  private synchronized Date registerBaseline(String key, String job, Date baseline) {
+    Map<String, Baseline> jobs = baselines.get(key);
+    if (jobs == null) {
+      jobs = new HashMap<String, Baseline>();
+      baselines.put(key, jobs);
+    }
+    jobs.put(job, new Baseline(baseline));
+
+    Date from = baseline;
+    long now = System.currentTimeMillis();
+    for (Iterator<Baseline> it = jobs.values().iterator(); it.hasNext();) {
+      Baseline b = it.next();
+      if (now - b.polled > BASELINE_EXPIRY_MILLIS)
+        it.remove();
+      else if (b.date.before(from))
+        from = b.date;
+    }
+    return from;
+  }
+
+  /**
+   * Drops the snapshots that are too old to answer a poll and the sources no
+   * job polled for a while.
+   */
+  private synchronized void evictStale(long ttlMillis) {
+    for (Iterator<Snapshot> it = snapshots.values().iterator(); it.hasNext();) {
+      if (!it.next().isFresh(ttlMillis))
+        it.remove();
+    }
+    long now = System.currentTimeMillis();
+    for (Iterator<Map<String, Baseline>> it = baselines.values().iterator(); it.hasNext();) {
+      Map<String, Baseline> jobs = it.next();
+      for (Iterator<Baseline> b = jobs.values().iterator(); b.hasNext();) {
+        if (now - b.next().polled > BASELINE_EXPIRY_MILLIS)
+          b.remove();
+      }
+      if (jobs.isEmpty())
+        it.remove();
+    }
+  }
+
+  private synchronized SourceLock acquire(String key) {
+    SourceLock lock = locks.get(key);
+    if (lock == null) {
+      lock = new SourceLock();
+      locks.put(key, lock);
+    }
+    lock.users++;
+    return lock;
+  }
+
+  private synchronized void release(String key, SourceLock lock) {
+    if (--lock.users == 0)
+      locks.remove(key);
+  }
+}
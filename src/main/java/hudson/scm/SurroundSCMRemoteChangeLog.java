@@ -0,0 +1,143 @@
+package hudson.scm;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+
+/**
+ * Runs <tt>sscm cc</tt> on the node that holds the workspace and builds the
+ * changelog's changeset index right there, converting the changelog to its
+ * compact form first if that is enabled, so the master does not have to
+ * parse the output and, when compact, only the smaller result travels to it.
+ */
+final class SurroundSCMRemoteChangeLog implements FilePath.FileCallable<SurroundSCMRemoteChangeLog.Result> {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * What came back from the node.
+   */
+  static final class Result implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final int exitCode;
+    final long bytes;
+    final long lines;
+    // null unless sscm succeeded
+    final byte[] changelog;
+    // null if the index could not be built on the node
+    final byte[] index;
+    final int changesets;
+    // the end of the output if sscm failed, to tell why
+    final String tail;
+
+    Result(int exitCode, long bytes, long lines, byte[] changelog, byte[] index, int changesets, String tail) {
+      this.exitCode = exitCode;
+      this.bytes = bytes;
+      this.lines = lines;
+      this.changelog = changelog;
+      this.index = index;
+      this.changesets = changesets;
+      this.tail = tail;
+    }
+  }
+
+  private final ArgumentListBuilder cmd;
+  private final TaskListener listener;
+  private final long windowMillis;
+  private final long timeoutSeconds;
+  private final boolean compact;
+
+  SurroundSCMRemoteChangeLog(ArgumentListBuilder cmd, TaskListener listener, long windowMillis, long timeoutSeconds,
+                             boolean compact) {
+    this.cmd = cmd;
+    this.listener = listener;
+    this.windowMillis = windowMillis;
+    this.timeoutSeconds = timeoutSeconds;
+    this.compact = compact;
+  }
+
+  public Result invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+    File changes = File.createTempFile("sscm-changes", ".log");
+    try {
+      SurroundSCM.CountingOutputStream out = new SurroundSCM.CountingOutputStream(
+            new BufferedOutputStream(new FileOutputStream(changes)));
+      int exitCode;
+      try {
+        Proc proc = new Launcher.LocalLauncher(listener).launch().cmds(cmd).envs(new String[0])
+              .stdin(null).stdout(out).pwd(workspace).start();
+        exitCode = SurroundSCMWatchdog.join(proc, "cc", timeoutSeconds);
+      } finally {
+        out.close();
+      }
+      if (exitCode != 0)
+        return new Result(exitCode, out.getBytes(), out.getLines(), null, null, 0, readTail(changes));
+
+      if (compact)
+        SurroundSCMCompactChangeLog.convert(changes);
+      SurroundSCMChangeLogIndex index = SurroundSCMChangeLogIndex.open(changes, windowMillis);
+      File indexFile = SurroundSCMChangeLogIndex.indexFileFor(changes);
+      return new Result(exitCode, out.getBytes(), out.getLines(), readFully(changes),
+                        indexFile.exists() ? readFully(indexFile) : null, index.size(), null);
+    } finally {
+      changes.delete();
+      SurroundSCMChangeLogIndex.indexFileFor(changes).delete();
+    }
+  }
+
+  private static String readTail(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      byte[] tail = new byte[(int) Math.min(raf.length(), SurroundSCMRetry.TAIL_BYTES)];
+      raf.seek(raf.length() - tail.length);
+      raf.readFully(tail);
+      return new String(tail);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static byte[] readFully(File file) throws IOException {
+    byte[] data = new byte[(int) file.length()];
+    InputStream in = new FileInputStream(file);
+    try {
+      int n = 0;
+      while (n < data.length) {
+        int read = in.read(data, n, data.length - n);
+        if (read < 0)
+          throw new IOException("Unexpected end of " + file);
+        n += read;
+      }
+      return data;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Stores the result as the build's changelog.
+   */
+  static void install(Result result, File changelogFile) throws IOException {
+    OutputStream os = new FileOutputStream(changelogFile);
+    try {
+      os.write(result.changelog);
+    } finally {
+      os.close();
+    }
+    if (result.index != null)
+      SurroundSCMChangeLogIndex.install(changelogFile, result.index);
+  }
+}
@@ -0,0 +1,126 @@
+package hudson.scm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Decides whether a failed sscm get is worth trying again and how long to
+ * wait first. sscm exits with the same code for every error, so failures are
+ * told apart by the last lines of their output; those that point at the
+ * network or a busy server are taken as transient. The phrases are matched
+ * whole, so that "disconnect" or "could not connect: invalid user" do not
+ * pass for a network failure.
+ * <p>
+ * Running out of licenses is not transient: the server is fine, but other
+ * clients hold every license, which may go on for hours. Such failures are
+ * not retried; they only make the scheduler back off from the server, like
+ * transient ones do.
+ */
+final class SurroundSCMRetry {
+
+  // output tail inspected for the cause of a failure
+  static final int TAIL_BYTES = 2048;
+
+  static final long MAX_DELAY_MILLIS = 10 * 60 * 1000L;
+
+  private static final String[] TRANSIENT = {
+    "connection refused", "connection reset", "connection timed out", "connection lost", "connection closed",
+    "unable to connect to server", "could not connect to server", "cannot connect to server",
+    "network is unreachable", "host is unreachable", "no route to host", "reset by peer", "broken pipe",
+    "socket error", "timed out", "temporarily unavailable", "server is busy", "try again later"
+  };
+
+  private static final String[] CAPACITY = {
+    "no licenses available", "no available licenses", "all licenses are in use", "license limit",
+    "licenses are in use"
+  };
+
+  private SurroundSCMRetry() {
+  }
+
+  /**
+   * Whether the output of a failed call looks like a transient failure.
+   */
+  static boolean isTransient(String output) {
+    return containsAny(output, TRANSIENT);
+  }
+
+  /**
+   * Whether the output of a failed call says the server has no capacity
+   * left for this client, such as a free license. Not worth retrying right
+   * away, but a reason to leave the server alone for a while.
+   */
+  static boolean isOutOfCapacity(String output) {
+    return containsAny(output, CAPACITY);
+  }
+
+  /**
+   * Whether a failure should make the scheduler back off from the server.
+   */
+  static boolean isServerFailure(String output) {
+    return isTransient(output) || isOutOfCapacity(output);
+  }
+
+  private static boolean containsAny(String output, String[] phrases) {
+    String lower = output.toLowerCase(Locale.ENGLISH);
+    for (String s : phrases) {
+      if (lower.contains(s))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * How long to wait before the given retry, counted from 0: the base delay
+   * doubled for every earlier retry, up to {@link #MAX_DELAY_MILLIS}.
+   */
+  static long delayMillis(int retry, int baseSeconds) {
+    long delay = Math.max(0, baseSeconds) * 1000L << Math.min(retry, 16);
+    return Math.min(delay, MAX_DELAY_MILLIS);
+  }
+
+  /**
+   * Passes output on while keeping its last {@link #TAIL_BYTES} bytes.
+   */
+  static final class TailOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final byte[] tail = new byte[TAIL_BYTES];
+    private long count;
+
+    TailOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+      out.write(b);
+      tail[(int) (count++ % TAIL_BYTES)] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      for (int i = off; i < off + len; i++)
+        tail[(int) (count++ % TAIL_BYTES)] = b[i];
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    /**
+     * The last bytes written, decoded with the platform charset like the
+     * console output.
+     */
+    synchronized String getTail() {
+      int size = (int) Math.min(count, TAIL_BYTES);
+      byte[] ordered = new byte[size];
+      int start = (int) ((count - size) % TAIL_BYTES);
+      for (int i = 0; i < size; i++)
+        ordered[i] = tail[(start + i) % TAIL_BYTES];
+      return new String(ordered);
+    }
+  }
+}
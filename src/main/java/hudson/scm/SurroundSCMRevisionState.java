@@ -3,20 +3,130 @@ package hudson.scm;
 import hudson.scm.SCMRevisionState;
 
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+/**
+ * The snapshot a build was made from and, once polling has seen changes
+ * since, a cursor on them: the server timestamp of the newest change, how
+ * many changes there are in total, and the changes close to the cursor. The
+ * next poll only queries from the cursor, less a margin for clock skew, and
+ * does not count the changes it already knows again. Each watched source
+ * has a cursor of its own.
+ */
 public final class SurroundSCMRevisionState extends SCMRevisionState {
 
   private final Date  buildDate;
   private final int   buildNumber;
+  // null until polling sees a change
+  private final Date lastChange;
+  private final int changeCount;
+  private final String[] recentChanges;
+  // the watched sources that changed since the previous build, null if the job watches none
+  private final String[] changedSources;
+  // how far polling has read each watched source, by label; null until it has
+  private final Map<String, Cursor> sourceCursors;
+
+  /**
+   * Decides which of the changes a poll lists are counted.
+   */
+  interface ChangeFilter {
+    boolean accepts(String repositoryPath, String name);
+  }
+
+  /**
+   * How far polling has read the changes of one source: the server
+   * timestamp of the newest change, how many changes there were, and the
+   * changes close enough to the newest for the next, overlapping, query to
+   * list them again.
+   */
+  static final class Cursor {
+    static final Cursor NONE = new Cursor(null, 0, null);
+
+    // null until polling sees a change
+    private final Date lastChange;
+    private final int changeCount;
+    private final String[] recentChanges;
+
+    Cursor(Date lastChange, int changeCount, String[] recentChanges) {
+      this.lastChange = lastChange == null ? null : new Date(lastChange.getTime());
+      this.changeCount = changeCount;
+      this.recentChanges = recentChanges;
+    }
+
+    Date getLastChange() {
+      return lastChange == null ? null : new Date(lastChange.getTime());
+    }
+
+    int getChangeCount() {
+      return changeCount;
+    }
+
+    /**
+     * Where the next change query has to start.
+     */
+    Date getQueryStart(Date buildDate, long marginMillis) {
+      if (lastChange == null)
+        return new Date(buildDate.getTime());
+      return new Date(Math.max(buildDate.getTime(), lastChange.getTime() - marginMillis));
+    }
+
+    /**
+     * The cursor after a poll that queried the given changes from
+     * <tt>from</tt>: changes not seen before that pass the filter are added
+     * to the count and the cursor moves to the newest change.
+     */
+    Cursor advance(SurroundSCMPollingService.Snapshot changes, Date from, ChangeFilter filter, long marginMillis) {
+      Set<String> seen = recentChanges == null ? new HashSet<String>() : new HashSet<String>(Arrays.asList(recentChanges));
+      long since = from.getTime() - from.getTime() % 1000;
+      long newest = lastChange == null ? -1 : lastChange.getTime();
+      int count = changeCount;
+      for (int i = 0; i < changes.size(); i++) {
+        if (changes.getTime(i) < since || seen.contains(changes.getKey(i)))
+          continue;
+        if (filter.accepts(changes.getPath(i), changes.getName(i)))
+          count++;
+        newest = Math.max(newest, changes.getTime(i));
+      }
+      if (newest < 0)
+        return this;
+
+      // the next query overlaps these, so they must not be counted again
+      List<String> recent = new ArrayList<String>();
+      for (int i = 0; i < changes.size(); i++) {
+        if (changes.getTime(i) >= since && changes.getTime(i) >= newest - marginMillis)
+          recent.add(changes.getKey(i));
+      }
+      return new Cursor(new Date(newest), count, recent.toArray(new String[recent.size()]));
+    }
+  }
   
 	public SurroundSCMRevisionState(Date buildDate, int buildNumber) {
+    this(buildDate, buildNumber, null, 0, null, null, null);
+	}
 
+  SurroundSCMRevisionState(Date buildDate, int buildNumber, String[] changedSources) {
+    this(buildDate, buildNumber, null, 0, null, changedSources, null);
+  }
+
+  SurroundSCMRevisionState(Date buildDate, int buildNumber, Date lastChange, int changeCount, String[] recentChanges,
+                           String[] changedSources, Map<String, Cursor> sourceCursors) {
 		this.buildDate = new Date(buildDate.getTime());
     this.buildNumber = buildNumber;
-	}
+    this.lastChange = lastChange == null ? null : new Date(lastChange.getTime());
+    this.changeCount = changeCount;
+    this.recentChanges = recentChanges;
+    this.changedSources = changedSources;
+    this.sourceCursors = sourceCursors == null ? null
+          : Collections.unmodifiableMap(new HashMap<String, Cursor>(sourceCursors));
+  }
 	
 	public Date getDate() {
 		return new Date(buildDate.getTime());
@@ -25,4 +135,69 @@ public final class SurroundSCMRevisionState extends SCMRevisionState {
   public int getBuildNumber() {
     return buildNumber;
   }
+
+  /**
+   * Server timestamp of the newest change polling has seen since the build,
+   * or null.
+   */
+  public Date getLastChange() {
+    return lastChange == null ? null : new Date(lastChange.getTime());
+  }
+
+  /**
+   * Number of changes polling has seen since the build.
+   */
+  public int getChangeCount() {
+    return changeCount;
+  }
+
+  /**
+   * The labels of the watched sources that changed since the previous build,
+   * or null if the job watches none.
+   */
+  public String[] getChangedSources() {
+    return changedSources == null ? null : changedSources.clone();
+  }
+
+  /**
+   * How far polling has read the watched source with the given label.
+   */
+  Cursor getSourceCursor(String label) {
+    Cursor cursor = sourceCursors == null ? null : sourceCursors.get(label);
+    return cursor == null ? Cursor.NONE : cursor;
+  }
+
+  /**
+   * This state with the given cursors for the watched sources.
+   */
+  SurroundSCMRevisionState withSourceCursors(Map<String, Cursor> cursors) {
+    return new SurroundSCMRevisionState(buildDate, buildNumber, lastChange, changeCount, recentChanges,
+                                        changedSources, cursors);
+  }
+
+  /**
+   * Where the next change query has to start.
+   */
+  Date getQueryStart(long marginMillis) {
+    return cursor().getQueryStart(buildDate, marginMillis);
+  }
+
+  /**
+   * The state after a poll that queried the given changes from
+   * <tt>from</tt>: changes not seen before that pass the filter are added to
+   * the count and the cursor moves to the newest change.
+   */
+  SurroundSCMRevisionState advance(SurroundSCMPollingService.Snapshot changes, Date from,
+                                   ChangeFilter filter, long marginMillis) {
+    Cursor cursor = cursor();
+    Cursor advanced = cursor.advance(changes, from, filter, marginMillis);
+    if (advanced == cursor)
+      return this;
+    return new SurroundSCMRevisionState(buildDate, buildNumber, advanced.lastChange, advanced.changeCount,
+                                        advanced.recentChanges, changedSources, sourceCursors);
+  }
+
+  private Cursor cursor() {
+    return new Cursor(lastChange, changeCount, recentChanges);
+  }
 }
@@ -0,0 +1,208 @@
+package hudson.scm;
+
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Limits how many sscm processes talk to one Surround server at a time.
+ * Callers queue in arrival order, so no job can starve the others, and give
+ * up after a configurable wait. Consecutive failures of the server itself,
+ * i.e. timeouts and connection errors, put it into an exponentially growing
+ * back-off during which polls are skipped. Errors only one job runs into,
+ * like a wrong password or a missing branch, do not.
+ */
+public final class SurroundSCMScheduler {
+
+  static final long MIN_BACKOFF_MILLIS = 10 * 1000L;
+  static final long MAX_BACKOFF_MILLIS = 10 * 60 * 1000L;
+
+  /**
+   * The queue of one server and what has been observed about it. The getters
+   * are shown on the global configuration page.
+   */
+  public static final class ServerQueue {
+    private final String server;
+    private final LinkedList<Thread> waiting = new LinkedList<Thread>();
+    private int running;
+    private long calls;
+    private long totalWaitMillis;
+    private long maxWaitMillis;
+    private long rejected;
+    private long skipped;
+    private long failures;
+    private long timeouts;
+    private int consecutiveFailures;
+    private long backoffUntil;
+
+    ServerQueue(String server) {
+      this.server = server;
+    }
+
+    public String getServer() {
+      return server;
+    }
+
+    public synchronized int getQueued() {
+      return waiting.size();
+    }
+
+    public synchronized int getRunning() {
+      return running;
+    }
+
+    public synchronized long getCalls() {
+      return calls;
+    }
+
+    public synchronized long getAverageWaitMillis() {
+      return calls == 0 ? 0 : totalWaitMillis / calls;
+    }
+
+    public synchronized long getMaxWaitMillis() {
+      return maxWaitMillis;
+    }
+
+    public synchronized long getRejected() {
+      return rejected;
+    }
+
+    public synchronized long getSkipped() {
+      return skipped;
+    }
+
+    /**
+     * Calls that failed because of the server, see {@link #release}.
+     */
+    public synchronized long getFailures() {
+      return failures;
+    }
+
+    /**
+     * Calls killed because they ran longer than allowed; also counted as
+     * failures.
+     */
+    public synchronized long getTimeouts() {
+      return timeouts;
+    }
+
+    /**
+     * Seconds left until the server is tried again, 0 if it is not backing off.
+     */
+    public synchronized long getBackoffSeconds() {
+      return Math.max(0, backoffUntil - System.currentTimeMillis()) / 1000;
+    }
+
+    synchronized boolean isBackingOff() {
+      return System.currentTimeMillis() < backoffUntil;
+    }
+
+    synchronized void skip() {
+      skipped++;
+    }
+
+    synchronized void timedOut() {
+      timeouts++;
+    }
+
+    /**
+     * Waits until fewer than <tt>limit</tt> calls are running and every caller
+     * that queued earlier has gone ahead.
+     *
+     * @return how long the caller waited, or -1 if it gave up.
+     */
+    synchronized long acquire(int limit, long timeoutMillis) throws InterruptedException {
+      long start = System.currentTimeMillis();
+      Thread self = Thread.currentThread();
+      waiting.addLast(self);
+      try {
+        while (waiting.getFirst() != self || running >= limit) {
+          long left = start + timeoutMillis - System.currentTimeMillis();
+          if (left <= 0) {
+            rejected++;
+            return -1;
+          }
+          wait(left);
+        }
+      } finally {
+        waiting.remove(self);
+        notifyAll();
+      }
+
+      long waited = System.currentTimeMillis() - start;
+      running++;
+      calls++;
+      totalWaitMillis += waited;
+      maxWaitMillis = Math.max(maxWaitMillis, waited);
+      return waited;
+    }
+
+    synchronized void release(boolean serverFailed) {
+      running--;
+      if (!serverFailed) {
+        consecutiveFailures = 0;
+        backoffUntil = 0;
+      } else {
+        failures++;
+        consecutiveFailures++;
+        long backoff = MIN_BACKOFF_MILLIS << Math.min(consecutiveFailures - 1, 16);
+        backoffUntil = System.currentTimeMillis() + Math.min(backoff, MAX_BACKOFF_MILLIS);
+      }
+      notifyAll();
+    }
+  }
+
+  private final Map<String, ServerQueue> servers = new TreeMap<String, ServerQueue>();
+
+  public synchronized ServerQueue getQueue(String server) {
+    ServerQueue queue = servers.get(server);
+    if (queue == null) {
+      queue = new ServerQueue(server);
+      servers.put(server, queue);
+    }
+    return queue;
+  }
+
+  public synchronized List<ServerQueue> getQueues() {
+    return new ArrayList<ServerQueue>(servers.values());
+  }
+
+  /**
+   * Takes a slot for an sscm call to the given server, waiting for one if
+   * needed.
+   *
+   * @return how long the caller waited, in milliseconds.
+   *
+   * @throws IOException if no slot became free within the configured wait.
+   */
+  long acquire(String server, int limit, long timeoutMillis, TaskListener listener) throws IOException, InterruptedException {
+    ServerQueue queue = getQueue(server);
+    long waited = queue.acquire(Math.max(1, limit), timeoutMillis);
+    if (waited < 0)
+      throw new IOException("Gave up waiting " + timeoutMillis / 1000 + "s for one of the " + limit + " sscm slots of " + server);
+    if (waited >= 1000)
+      listener.getLogger().println("Waited " + waited / 1000 + "s for a free sscm slot on " + server);
+    return waited;
+  }
+
+  /**
+   * Frees the slot taken by {@link #acquire}, recording whether the call
+   * failed because of the server. Any other outcome shows the server
+   * answers and ends a back-off.
+   */
+  void release(String server, boolean serverFailed) {
+    getQueue(server).release(serverFailed);
+  }
+
+  /**
+   * Records that a call to the given server was killed by the watchdog.
+   */
+  void timedOut(String server) {
+    getQueue(server).timedOut();
+  }
+}
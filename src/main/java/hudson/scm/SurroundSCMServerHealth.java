@@ -0,0 +1,154 @@
+package hudson.scm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Whether the Surround servers in use accept connections, as last found by a
+ * TCP connect to their port from the master. The servers of all profiles and
+ * every server a job has used are probed in the background by
+ * {@link SurroundSCMServerProbe}, so polls and checkouts can skip or fail
+ * right away while a server is known to be down instead of each waiting for
+ * sscm to time out.
+ */
+public final class SurroundSCMServerHealth {
+
+  static final int CONNECT_TIMEOUT_MILLIS = 5 * 1000;
+
+  /**
+   * What the last probe of one server found. The getters are shown on the
+   * global configuration page.
+   */
+  public static final class Status {
+    private final String host;
+    private final int port;
+    private Boolean up;
+    private Date lastProbe;
+    private Date downSince;
+    private long connectMillis;
+    private String lastError;
+
+    Status(String host, int port) {
+      this.host = host;
+      this.port = port;
+    }
+
+    public String getServer() {
+      return host + ":" + port;
+    }
+
+    /**
+     * Whether the server was reachable, null until it is first probed.
+     */
+    public synchronized Boolean getUp() {
+      return up;
+    }
+
+    public synchronized boolean isDown() {
+      return up != null && !up;
+    }
+
+    public synchronized Date getLastProbe() {
+      return lastProbe;
+    }
+
+    public synchronized Date getDownSince() {
+      return downSince;
+    }
+
+    /**
+     * How long the last successful connect took.
+     */
+    public synchronized long getConnectMillis() {
+      return connectMillis;
+    }
+
+    public synchronized String getLastError() {
+      return lastError;
+    }
+
+    void probe() {
+      long start = System.currentTimeMillis();
+      Socket socket = new Socket();
+      String error = null;
+      try {
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+      } catch (IOException e) {
+        error = e.toString();
+      } finally {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // nothing was sent
+        }
+      }
+      long took = System.currentTimeMillis() - start;
+
+      synchronized (this) {
+        lastProbe = new Date();
+        if (error == null) {
+          up = true;
+          downSince = null;
+          connectMillis = took;
+          lastError = null;
+        } else {
+          if (!isDown())
+            downSince = lastProbe;
+          up = false;
+          lastError = error;
+        }
+      }
+    }
+
+    /**
+     * Describes the outage for build and polling logs.
+     */
+    public synchronized String describe() {
+      return "Server " + getServer() + " has not accepted connections since " + downSince + " (" + lastError + ")";
+    }
+  }
+
+  private final Map<String, Status> servers = new TreeMap<String, Status>();
+
+  /**
+   * The status of a server, which is probed from now on.
+   *
+   * @return null if the connection settings name no server to probe.
+   */
+  Status watch(SurroundSCMServerProfile connection) {
+    String host = connection.getServer();
+    int port = connection.getPort();
+    if (host == null || host.trim().length() == 0 || port <= 0)
+      return null;
+    host = host.trim();
+    synchronized (this) {
+      String key = host + ":" + port;
+      Status status = servers.get(key);
+      if (status == null) {
+        status = new Status(host, port);
+        servers.put(key, status);
+      }
+      return status;
+    }
+  }
+
+  public synchronized List<Status> getStatuses() {
+    return new ArrayList<Status>(servers.values());
+  }
+
+  /**
+   * Probes the servers of the given profiles and every server watched.
+   */
+  void probeAll(List<SurroundSCMServerProfile> profiles) {
+    for (SurroundSCMServerProfile profile : profiles)
+      watch(profile);
+    for (Status status : getStatuses())
+      status.probe();
+  }
+}
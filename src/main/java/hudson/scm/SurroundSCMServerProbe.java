@@ -0,0 +1,25 @@
+package hudson.scm;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+
+/**
+ * Refreshes the {@link SurroundSCMServerHealth} of the Surround servers
+ * every minute, unless that is turned off globally.
+ */
+@Extension
+public final class SurroundSCMServerProbe extends PeriodicWork {
+
+  @Override
+  public long getRecurrencePeriod() {
+    return MIN;
+  }
+
+  @Override
+  protected void doRun() {
+    SurroundSCM.SurroundSCMDescriptor descriptor = SurroundSCM.DESCRIPTOR;
+    if (descriptor.isDisableServerProbe())
+      return;
+    descriptor.getServerHealth().probeAll(descriptor.getProfiles());
+  }
+}
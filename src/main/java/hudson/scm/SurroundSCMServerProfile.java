@@ -0,0 +1,66 @@
+package hudson.scm;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Connection settings for one Surround server, defined once on the global
+ * configuration page and referred to by name from jobs. Jobs that name no
+ * profile carry the same settings themselves.
+ */
+public final class SurroundSCMServerProfile {
+
+  private final String name;
+  private final String server;
+  private final String serverPort;
+  private final String userName;
+  private final String password;
+  private final String rsaKeyPath;
+
+  @DataBoundConstructor
+  public SurroundSCMServerProfile(String name, String server, String serverPort, String userName, String password,
+                                  String rsaKeyPath) {
+    this.name = name == null ? null : name.trim();
+    this.server = server;
+    this.serverPort = serverPort;
+    this.userName = userName;
+    this.password = password;
+    this.rsaKeyPath = rsaKeyPath;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getServer() {
+    return server;
+  }
+
+  public String getServerPort() {
+    return serverPort;
+  }
+
+  public String getUserName() {
+    return userName;
+  }
+
+  public String getPassword() {
+    return password;
+  }
+
+  public String getRsaKeyPath() {
+    return rsaKeyPath;
+  }
+
+  /**
+   * The port as a number.
+   *
+   * @return -1 if none or no valid one is set.
+   */
+  int getPort() {
+    try {
+      return serverPort == null ? -1 : Integer.parseInt(serverPort.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
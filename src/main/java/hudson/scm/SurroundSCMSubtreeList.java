@@ -0,0 +1,100 @@
+package hudson.scm;
+
+import hudson.FilePath;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The top-level directories of the repository as the server reported them,
+ * up to a timestamp, for splitting a checkout into one get per directory.
+ * Only directories that changes listed by sscm were found in are recorded,
+ * so build output such as <tt>target</tt> never becomes a partition. It is
+ * kept in the workspace root next to the files it describes.
+ */
+public final class SurroundSCMSubtreeList {
+
+  public static final String FILE_NAME = ".sscm-subtrees";
+
+  private static final String HEADER = "# Surround SCM subtrees";
+  private static final String TIMESTAMP_KEY = "timestamp=";
+  private static final String SOURCE_KEY = "source=";
+
+  private final Date timestamp;
+  private final Set<String> subtrees = new TreeSet<String>();
+
+  public SurroundSCMSubtreeList(Date timestamp, Collection<String> subtrees) {
+    this.timestamp = new Date(timestamp.getTime());
+    this.subtrees.addAll(subtrees);
+  }
+
+  /**
+   * Up to when the server's changes were taken into account.
+   */
+  public Date getTimestamp() {
+    return new Date(timestamp.getTime());
+  }
+
+  public Set<String> getSubtrees() {
+    return new TreeSet<String>(subtrees);
+  }
+
+  /**
+   * Reads the list recorded for the given source.
+   *
+   * @return the list, or null if there is none, it is for another source, or
+   *         it cannot be understood.
+   */
+  public static SurroundSCMSubtreeList load(FilePath workspace, String source) throws IOException, InterruptedException {
+    FilePath file = workspace.child(FILE_NAME);
+    if (!file.exists())
+      return null;
+
+    BufferedReader br = new BufferedReader(new StringReader(file.readToString()));
+    String line = br.readLine();
+    if (line == null || !line.equals(HEADER))
+      return null;
+
+    line = br.readLine();
+    if (line == null || !line.startsWith(TIMESTAMP_KEY))
+      return null;
+    Date timestamp;
+    try {
+      timestamp = new SimpleDateFormat(SurroundSCM.SURROUND_DATETIME_FORMAT_STR).parse(line.substring(TIMESTAMP_KEY.length()));
+    } catch (ParseException e) {
+      return null;
+    }
+
+    line = br.readLine();
+    if (line == null || !line.equals(SOURCE_KEY.concat(source)))
+      return null;
+
+    Set<String> subtrees = new TreeSet<String>();
+    while ((line = br.readLine()) != null) {
+      if (line.length() > 0)
+        subtrees.add(line);
+    }
+    return new SurroundSCMSubtreeList(timestamp, subtrees);
+  }
+
+  public static void clear(FilePath workspace) throws IOException, InterruptedException {
+    workspace.child(FILE_NAME).delete();
+  }
+
+  public void save(FilePath workspace, String source) throws IOException, InterruptedException {
+    StringBuilder sb = new StringBuilder();
+    sb.append(HEADER).append('\n');
+    sb.append(TIMESTAMP_KEY).append(new SimpleDateFormat(SurroundSCM.SURROUND_DATETIME_FORMAT_STR).format(timestamp)).append('\n');
+    sb.append(SOURCE_KEY).append(source).append('\n');
+    for (String subtree : subtrees)
+      sb.append(subtree).append('\n');
+    workspace.child(FILE_NAME).write(sb.toString(), "UTF-8");
+  }
+}
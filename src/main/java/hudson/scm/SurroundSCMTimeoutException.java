@@ -0,0 +1,32 @@
+package hudson.scm;
+
+import java.io.IOException;
+
+/**
+ * Thrown when sscm did not finish within the time allowed for its command
+ * and was killed.
+ */
+public final class SurroundSCMTimeoutException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String command;
+  private final long timeoutSeconds;
+
+  SurroundSCMTimeoutException(String command, long timeoutSeconds) {
+    super("sscm " + command + " did not finish within " + timeoutSeconds + "s and was killed");
+    this.command = command;
+    this.timeoutSeconds = timeoutSeconds;
+  }
+
+  /**
+   * The sscm sub command, such as <tt>get</tt> or <tt>cc</tt>.
+   */
+  public String getCommand() {
+    return command;
+  }
+
+  public long getTimeoutSeconds() {
+    return timeoutSeconds;
+  }
+}
@@ -0,0 +1,81 @@
+package hudson.scm;
+
+import hudson.Proc;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Waits for sscm with a time limit. A process still running when the limit
+ * is reached is killed together with its child processes, so a hung
+ * connection to the server does not hold an executor and a server slot
+ * forever. Used on the master and, for changelogs captured there, on the
+ * nodes.
+ */
+final class SurroundSCMWatchdog {
+
+  private static final Logger LOGGER = Logger.getLogger(SurroundSCMWatchdog.class.getName());
+
+  private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "Surround SCM watchdog");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  private SurroundSCMWatchdog() {
+  }
+
+  /**
+   * Waits for the process to exit.
+   *
+   * @param command the sscm sub command, for the message.
+   * @param timeoutSeconds how long to wait, 0 or less to wait without limit.
+   *
+   * @return the exit code.
+   *
+   * @throws SurroundSCMTimeoutException if the process was killed because it
+   *         took too long.
+   */
+  static int join(final Proc proc, String command, long timeoutSeconds) throws IOException, InterruptedException {
+    if (timeoutSeconds <= 0)
+      return proc.join();
+
+    ScheduledFuture<?> kill = TIMER.schedule(new Runnable() {
+      public void run() {
+        try {
+          // Proc.kill takes the child processes along
+          proc.kill();
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING, "Failed to kill a hung sscm", e);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, timeoutSeconds, TimeUnit.SECONDS);
+
+    int exitCode;
+    try {
+      exitCode = proc.join();
+    } catch (IOException e) {
+      // a killed remote process may surface as a broken stream
+      if (!kill.cancel(false))
+        throw new SurroundSCMTimeoutException(command, timeoutSeconds);
+      throw e;
+    } catch (InterruptedException e) {
+      kill.cancel(false);
+      throw e;
+    }
+    // the kill ran, or is about to, unless it can still be called off
+    if (!kill.cancel(false))
+      throw new SurroundSCMTimeoutException(command, timeoutSeconds);
+    return exitCode;
+  }
+}
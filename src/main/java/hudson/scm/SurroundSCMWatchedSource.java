@@ -0,0 +1,114 @@
+package hudson.scm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A branch, optionally with its own repository path, that a job watches for
+ * changes besides the branch and repository it builds. Written one per line
+ * as <tt>branch</tt> or <tt>branch | repository</tt>; the repository
+ * defaults to the job's.
+ */
+final class SurroundSCMWatchedSource implements SurroundSCMRevisionState.ChangeFilter {
+
+  private final String branch;
+  private final String repository;
+  private final String label;
+
+  SurroundSCMWatchedSource(String branch, String repository, String label) {
+    this.branch = branch;
+    this.repository = repository;
+    this.label = label;
+  }
+
+  String getBranch() {
+    return branch;
+  }
+
+  String getRepository() {
+    return repository;
+  }
+
+  /**
+   * How the source is named in logs and environment variables.
+   */
+  String getLabel() {
+    return label;
+  }
+
+  /**
+   * Whether a repository path reported by sscm is in this source.
+   */
+  boolean contains(String repositoryPath) {
+    return repositoryPath.equals(repository) || repositoryPath.startsWith(repository.concat("/"));
+  }
+
+  /**
+   * Whether a file reported by sscm is in this source.
+   */
+  public boolean accepts(String repositoryPath, String name) {
+    return contains(repositoryPath);
+  }
+
+  /**
+   * Whether this source is the given branch and repository.
+   */
+  boolean isSame(String branch, String repository) {
+    return this.branch.equals(branch) && repository != null && this.repository.equals(normalize(repository));
+  }
+
+  static List<SurroundSCMWatchedSource> parse(String text, String defaultRepository) {
+    List<SurroundSCMWatchedSource> sources = new ArrayList<SurroundSCMWatchedSource>();
+    if (text == null)
+      return sources;
+    for (String line : text.split("\n")) {
+      line = line.trim();
+      if (line.length() == 0)
+        continue;
+      int bar = line.indexOf('|');
+      String branch = (bar < 0 ? line : line.substring(0, bar)).trim();
+      String repository = bar < 0 ? defaultRepository : line.substring(bar + 1);
+      repository = repository == null ? "" : normalize(repository);
+      if (branch.length() == 0 || repository.length() == 0)
+        continue;
+      sources.add(new SurroundSCMWatchedSource(branch, repository,
+                                               bar < 0 ? branch : branch + " | " + repository));
+    }
+    return sources;
+  }
+
+  /**
+   * The deepest repository that holds all of the given ones.
+   *
+   * @return null if they have no common repository.
+   */
+  static String commonRepository(List<SurroundSCMWatchedSource> sources) {
+    String[] common = null;
+    int length = 0;
+    for (SurroundSCMWatchedSource source : sources) {
+      String[] segments = source.repository.split("/");
+      if (common == null) {
+        common = segments;
+        length = segments.length;
+        continue;
+      }
+      int n = 0;
+      while (n < length && n < segments.length && common[n].equals(segments[n]))
+        n++;
+      length = n;
+    }
+    if (common == null || length == 0)
+      return null;
+    StringBuilder sb = new StringBuilder(common[0]);
+    for (int i = 1; i < length; i++)
+      sb.append('/').append(common[i]);
+    return sb.toString();
+  }
+
+  private static String normalize(String repository) {
+    repository = repository.trim().replace('\\', '/');
+    while (repository.endsWith("/"))
+      repository = repository.substring(0, repository.length() - 1);
+    return repository;
+  }
+}
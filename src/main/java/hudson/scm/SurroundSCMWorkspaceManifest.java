@@ -0,0 +1,232 @@
+package hudson.scm;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Records what a workspace was last updated to: the timestamp the files were
+ * fetched at and the version of every file of the repository the plugin
+ * knows of, with the size and modification time the file had in the
+ * workspace when it was fetched, so files changed or removed in the
+ * workspace since can be fetched again. The manifest lives in the workspace
+ * root so it is wiped together with the files it describes.
+ */
+public final class SurroundSCMWorkspaceManifest {
+
+  public static final String FILE_NAME = ".sscm-manifest";
+
+  private static final String HEADER = "# Surround SCM workspace manifest";
+  private static final String TIMESTAMP_KEY = "timestamp=";
+
+  private static final class Entry {
+    final String version;
+    final String date;
+    // -1 while not known
+    long size = -1;
+    long modified = -1;
+
+    Entry(String version, String date) {
+      this.version = version;
+      this.date = date;
+    }
+  }
+
+  private Date timestamp;
+  private final TreeMap<String, Entry> files = new TreeMap<String, Entry>();
+
+  public Date getTimestamp() {
+    return timestamp == null ? null : new Date(timestamp.getTime());
+  }
+
+  public void setTimestamp(Date timestamp) {
+    this.timestamp = new Date(timestamp.getTime());
+  }
+
+  /**
+   * Records that the workspace now holds the given version of a file.
+   */
+  public void update(String path, String version, String date) {
+    files.put(path, new Entry(version, date));
+  }
+
+  /**
+   * Forgets a file, or everything below a directory.
+   */
+  public void remove(String path) {
+    files.remove(path);
+    String prefix = path.concat("/");
+    files.keySet().removeAll(new ArrayList<String>(files.subMap(prefix, prefix.concat("\uffff")).keySet()));
+  }
+
+  public String getVersion(String path) {
+    Entry entry = files.get(path);
+    return entry == null ? null : entry.version;
+  }
+
+  public String getDate(String path) {
+    Entry entry = files.get(path);
+    return entry == null ? null : entry.date;
+  }
+
+  public Set<String> getPaths() {
+    return new TreeSet<String>(files.keySet());
+  }
+
+  public int size() {
+    return files.size();
+  }
+
+  /**
+   * The files whose size or modification time in the workspace is no longer
+   * what was recorded when they were fetched, or that are gone.
+   */
+  public List<String> findLocalChanges(FilePath workspace) throws IOException, InterruptedException {
+    List<String> stamped = new ArrayList<String>();
+    for (Map.Entry<String, Entry> e : files.entrySet()) {
+      if (e.getValue().modified >= 0)
+        stamped.add(e.getKey());
+    }
+    Map<String, long[]> stamps = workspace.act(new Stat(stamped));
+    List<String> changed = new ArrayList<String>();
+    for (String path : stamped) {
+      Entry entry = files.get(path);
+      long[] stamp = stamps.get(path);
+      if (stamp == null || stamp[0] != entry.size || stamp[1] != entry.modified)
+        changed.add(path);
+    }
+    return changed;
+  }
+
+  /**
+   * Records the size and modification time the given files have in the
+   * workspace now that they were fetched. Files the workspace does not hold
+   * are forgotten.
+   */
+  public void stamp(FilePath workspace, Collection<String> paths) throws IOException, InterruptedException {
+    List<String> known = new ArrayList<String>();
+    for (String path : paths) {
+      if (files.containsKey(path))
+        known.add(path);
+    }
+    Map<String, long[]> stamps = workspace.act(new Stat(known));
+    for (String path : known) {
+      long[] stamp = stamps.get(path);
+      if (stamp == null) {
+        files.remove(path);
+      } else {
+        Entry entry = files.get(path);
+        entry.size = stamp[0];
+        entry.modified = stamp[1];
+      }
+    }
+  }
+
+  /**
+   * The size and modification time of files below the workspace, taken on
+   * the node in one call; files that do not exist are left out.
+   */
+  private static final class Stat implements FilePath.FileCallable<Map<String, long[]>> {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> paths;
+
+    Stat(List<String> paths) {
+      this.paths = paths;
+    }
+
+    public Map<String, long[]> invoke(File workspace, VirtualChannel channel) {
+      Map<String, long[]> stamps = new HashMap<String, long[]>();
+      for (String path : paths) {
+        File file = new File(workspace, path);
+        if (file.isFile())
+          stamps.put(path, new long[] { file.length(), file.lastModified() });
+      }
+      return stamps;
+    }
+  }
+
+  /**
+   * Reads the manifest stored in the workspace.
+   *
+   * @return the manifest, or null if it is missing or cannot be understood, in
+   *         which case the caller should fall back to a full get.
+   */
+  public static SurroundSCMWorkspaceManifest load(FilePath workspace) throws IOException, InterruptedException {
+    FilePath file = workspace.child(FILE_NAME);
+    if (!file.exists())
+      return null;
+
+    SurroundSCMWorkspaceManifest manifest = new SurroundSCMWorkspaceManifest();
+    SimpleDateFormat formatter = new SimpleDateFormat(SurroundSCM.SURROUND_DATETIME_FORMAT_STR);
+    BufferedReader br = new BufferedReader(new StringReader(file.readToString()));
+    String line = br.readLine();
+    if (line == null || !line.equals(HEADER))
+      return null;
+
+    line = br.readLine();
+    if (line == null || !line.startsWith(TIMESTAMP_KEY))
+      return null;
+    try {
+      manifest.timestamp = formatter.parse(line.substring(TIMESTAMP_KEY.length()));
+    } catch (ParseException e) {
+      return null;
+    }
+
+    while ((line = br.readLine()) != null) {
+      if (line.length() == 0)
+        continue;
+      // manifests written before the workspace stamps were kept have 3 fields
+      String[] fields = line.split("\t", -1);
+      if (fields.length != 3 && fields.length != 5)
+        return null;
+      Entry entry = new Entry(fields[1], fields[2]);
+      if (fields.length == 5) {
+        try {
+          entry.size = Long.parseLong(fields[3]);
+          entry.modified = Long.parseLong(fields[4]);
+        } catch (NumberFormatException e) {
+          return null;
+        }
+      }
+      manifest.files.put(fields[0], entry);
+    }
+    return manifest;
+  }
+
+  /**
+   * Removes the manifest from the workspace so an interrupted update is never
+   * mistaken for a complete one.
+   */
+  public static void invalidate(FilePath workspace) throws IOException, InterruptedException {
+    workspace.child(FILE_NAME).delete();
+  }
+
+  public void save(FilePath workspace) throws IOException, InterruptedException {
+    SimpleDateFormat formatter = new SimpleDateFormat(SurroundSCM.SURROUND_DATETIME_FORMAT_STR);
+    StringBuilder sb = new StringBuilder();
+    sb.append(HEADER).append('\n');
+    sb.append(TIMESTAMP_KEY).append(formatter.format(timestamp)).append('\n');
+    for (Map.Entry<String, Entry> e : files.entrySet()) {
+      Entry entry = e.getValue();
+      sb.append(e.getKey()).append('\t').append(entry.version).append('\t').append(entry.date)
+        .append('\t').append(entry.size).append('\t').append(entry.modified).append('\n');
+    }
+    workspace.child(FILE_NAME).write(sb.toString(), "UTF-8");
+  }
+}